@@ -0,0 +1,45 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * read fixed width ASCII fields directly from a byte buffer
+ * without intermediate arrays or Strings
+ */
+final class AsciiField {
+
+    private AsciiField() {}
+
+    /**
+     * decimal number in buf[begin..end), optional leading sign like Integer.parseInt
+     *
+     * @param name used in the error message only
+     */
+    static int parseInt(final byte[] buf, final int begin, final int end, final String name) {
+        int pos = begin;
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+        if (pos == end)
+            throw new NumberFormatException(name + ": empty field at offset " + begin);
+        int value = 0;
+        for (; pos < end; pos++) {
+            int c = buf[pos] - '0';
+            if (c < 0 || c > 9)
+                throw new NumberFormatException(String.format("%s: non-digit byte 0x%02x at offset %d", name, buf[pos] & 0xff, pos));
+            value = value * 10 + c;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return true if buf[begin..begin+s.length()) contains the characters of s
+     */
+    static boolean equals(final byte[] buf, final int begin, final String s) {
+        for (int i = 0; i < s.length(); i++)
+            if ((buf[begin + i] & 0xff) != s.charAt(i))
+                return false;
+        return true;
+    }
+
+}
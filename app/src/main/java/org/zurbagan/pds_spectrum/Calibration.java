@@ -0,0 +1,285 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * channel -> energy calibration E(ch) = c0 + c1 * ch + c2 * ch^2 in keV
+ *
+ * without a user calibration the device gain and offset are used: E = offset + gain * ch.
+ * A quadratic user calibration is fitted from reference peaks. It is kept per serial number,
+ * gain and bins, as a fit in channels is not valid for other settings, and saved to a text
+ * file, one tab separated line "serial gain bins c0 c1 c2" per calibration. Tabs, as the
+ * serial is the raw 8 character header field and may be padded with spaces.
+ *
+ * plot, peak search and export read energies from one Table per (serial, gain, offset, bins),
+ * built once and cached, instead of evaluating the polynomial per bin.
+ */
+final class Calibration {
+
+    private static final int CACHE_SIZE = 8;
+
+    final double c0, c1, c2;
+
+    Calibration(double c0, double c1, double c2) {
+        this.c0 = c0;
+        this.c1 = c1;
+        this.c2 = c2;
+    }
+
+    static Calibration linear(float gain, int offset) {
+        return new Calibration(offset, gain, 0);
+    }
+
+    double energy(double channel) {
+        return c0 + (c1 + c2 * channel) * channel;
+    }
+
+    /**
+     * least squares fit through reference peaks, linear for 2 peaks, else quadratic
+     *
+     * @throws IllegalArgumentException less than 2 peaks, peaks at the same channel
+     *         or energy not increasing with channel within [0, bins)
+     */
+    static Calibration fit(double[] channels, double[] energies, int n, int bins) {
+        if (n < 2)
+            throw new IllegalArgumentException("at least 2 reference peaks required");
+        double scale = 0;   // fit in ch / scale to keep the normal equations well conditioned
+        for (int i = 0; i < n; i++)
+            scale = Math.max(scale, Math.abs(channels[i]));
+        if (scale == 0)
+            throw new IllegalArgumentException("reference peaks at the same channel");
+        int terms = n == 2 ? 2 : 3;
+        double[][] a = new double[terms][terms + 1];
+        for (int i = 0; i < n; i++) {
+            double x = channels[i] / scale;
+            double[] powers = {1, x, x * x};
+            for (int r = 0; r < terms; r++) {
+                for (int c = 0; c < terms; c++)
+                    a[r][c] += powers[r] * powers[c];
+                a[r][terms] += powers[r] * energies[i];
+            }
+        }
+        double[] b = solve(a, terms);
+        if (b == null)
+            throw new IllegalArgumentException("reference peaks at the same channel");
+        Calibration calibration = new Calibration(b[0], b[1] / scale,
+                terms == 3 ? b[2] / (scale * scale) : 0);
+        if (!calibration.isIncreasing(bins))
+            throw new IllegalArgumentException("energy not increasing with channel");
+        return calibration;
+    }
+
+    /**
+     * gaussian elimination with partial pivoting on augmented matrix a
+     *
+     * @return null if singular
+     */
+    private static double[] solve(double[][] a, int n) {
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < n; r++)
+                if (Math.abs(a[r][col]) > Math.abs(a[pivot][col]))
+                    pivot = r;
+            if (Math.abs(a[pivot][col]) < 1e-12 * Math.abs(a[0][0]))
+                return null;
+            double[] t = a[col]; a[col] = a[pivot]; a[pivot] = t;
+            for (int r = col + 1; r < n; r++) {
+                double f = a[r][col] / a[col][col];
+                for (int c = col; c <= n; c++)
+                    a[r][c] -= f * a[col][c];
+            }
+        }
+        double[] x = new double[n];
+        for (int r = n - 1; r >= 0; r--) {
+            double s = a[r][n];
+            for (int c = r + 1; c < n; c++)
+                s -= a[r][c] * x[c];
+            x[r] = s / a[r][r];
+        }
+        return x;
+    }
+
+    /**
+     * derivative c1 + 2 c2 ch > 0 at both ends of [0, bins), so everywhere in between
+     */
+    boolean isIncreasing(int bins) {
+        return c1 > 0 && c1 + 2 * c2 * Math.max(bins - 1, 0) > 0;
+    }
+
+    /**
+     * energy per channel of one spectrum layout, immutable
+     */
+    static final class Table {
+        final String serial;
+        final float gain;
+        final int offset;
+        final int bins;
+        final Calibration calibration;
+        final float[] energies;     // keV at channel i
+        private final boolean increasing;
+
+        private Table(String serial, float gain, int offset, int bins, Calibration calibration) {
+            this.serial = serial;
+            this.gain = gain;
+            this.offset = offset;
+            this.bins = bins;
+            this.calibration = calibration;
+            energies = new float[bins];
+            boolean increasing = true;
+            for (int ch = 0; ch < bins; ch++) {
+                energies[ch] = (float) calibration.energy(ch);
+                if (ch > 0 && energies[ch] <= energies[ch - 1])
+                    increasing = false;
+            }
+            this.increasing = increasing;
+        }
+
+        private boolean matches(String serial, float gain, int offset, int bins) {
+            return this.bins == bins && this.offset == offset && this.gain == gain && this.serial.equals(serial);
+        }
+
+        /**
+         * from table within the spectrum, else from the polynomial
+         */
+        float energy(float channel) {
+            int ch = (int) channel;
+            if (ch == channel && ch >= 0 && ch < bins)
+                return energies[ch];
+            return (float) calibration.energy(channel);
+        }
+
+        /**
+         * inverse lookup by binary search in the table, linear between channels
+         *
+         * @return fractional channel, NaN if energy is outside of the spectrum or
+         *         the calibration is not increasing
+         */
+        double channel(double energy) {
+            if (!increasing || bins == 0 || energy < energies[0] || energy > energies[bins - 1])
+                return Double.NaN;
+            int lo = 0, hi = bins - 1;    // energies[lo] <= energy <= energies[hi]
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (energies[mid] <= energy)
+                    lo = mid;
+                else
+                    hi = mid;
+            }
+            if (lo == hi)
+                return lo;
+            return lo + (energy - energies[lo]) / (energies[hi] - energies[lo]);
+        }
+    }
+
+    private static final Map<String, Calibration> userCalibrations = new HashMap<>();  // by userKey
+    private static final LinkedHashMap<String, Table> tables = new LinkedHashMap<String, Table>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Table> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private static Table last;
+    private static File file;   // user calibrations, null: kept in memory only
+
+    private static String userKey(String serial, float gain, int bins) {
+        return serial + '\t' + gain + '\t' + bins;
+    }
+
+    /**
+     * read user calibrations, later changes are saved to the same file
+     */
+    static synchronized void load(File file) throws IOException {
+        Calibration.file = file;
+        userCalibrations.clear();
+        tables.clear();
+        last = null;
+        if (!file.exists())
+            return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 6)
+                    continue;
+                try {
+                    userCalibrations.put(userKey(fields[0], Float.parseFloat(fields[1]), Integer.parseInt(fields[2])),
+                            new Calibration(Double.parseDouble(fields[3]), Double.parseDouble(fields[4]), Double.parseDouble(fields[5])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+    }
+
+    private static void save() throws IOException {
+        if (file == null)
+            return;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Calibration> e : userCalibrations.entrySet()) {
+            Calibration c = e.getValue();
+            sb.append(e.getKey()).append('\t').append(c.c0).append('\t').append(c.c1).append('\t').append(c.c2).append('\n');
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("cannot replace " + file);
+    }
+
+    /**
+     * use a fitted calibration for spectra of this device with this gain and bins,
+     * null returns to gain and offset
+     *
+     * @throws IOException not saved, but used until the next load
+     */
+    static synchronized void setUser(String serial, float gain, int bins, Calibration calibration) throws IOException {
+        String key = userKey(serial, gain, bins);
+        if (calibration == null)
+            userCalibrations.remove(key);
+        else
+            userCalibrations.put(key, calibration);
+        for (Iterator<Table> it = tables.values().iterator(); it.hasNext(); )
+            if (it.next().serial.equals(serial))
+                it.remove();  // Collection.removeIf needs API 24
+        last = null;
+        save();
+    }
+
+    static synchronized Calibration getUser(String serial, float gain, int bins) {
+        return userCalibrations.get(userKey(serial, gain, bins));
+    }
+
+    static Table table(Spectrum spectrum) {
+        return table(spectrum.serial, spectrum.gain, spectrum.offset, spectrum.bins);
+    }
+
+    /**
+     * cached table, usually the same as for the previous call, found without allocation
+     */
+    static synchronized Table table(String serial, float gain, int offset, int bins) {
+        Table t = last;
+        if (t != null && t.matches(serial, gain, offset, bins))
+            return t;
+        String key = serial + '/' + Float.floatToIntBits(gain) + '/' + offset + '/' + bins;
+        t = tables.get(key);
+        if (t == null) {
+            Calibration calibration = userCalibrations.get(userKey(serial, gain, bins));
+            t = new Table(serial, gain, offset, bins, calibration != null ? calibration : linear(gain, offset));
+            tables.put(key, t);
+        }
+        last = t;
+        return t;
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * recyclable receive buffers, so the steady state read path does not allocate
+ *
+ * a chunk is obtained by the reading thread, handed down the listener chain
+ * and released by whoever consumed it last. If all pooled chunks are in use
+ * (e.g. while the UI is detached) new ones are allocated and dropped on release.
+ */
+final class ChunkPool {
+
+    static final class Chunk {
+        final byte[] data;
+        int length;
+        private final ChunkPool pool;
+        private boolean released;
+
+        private Chunk(ChunkPool pool, int size) {
+            this.pool = pool;
+            this.data = new byte[size];
+        }
+
+        void release() {
+            pool.release(this);
+        }
+    }
+
+    private final int chunkSize;
+    private final Chunk[] free;
+    private int count;
+
+    ChunkPool(int chunkSize, int capacity) {
+        this.chunkSize = chunkSize;
+        this.free = new Chunk[capacity];
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    synchronized Chunk obtain() {
+        if (count == 0)
+            return new Chunk(this, chunkSize);
+        Chunk chunk = free[--count];
+        free[count] = null;
+        chunk.released = false;
+        chunk.length = 0;
+        return chunk;
+    }
+
+    private synchronized void release(Chunk chunk) {
+        if (chunk.released)
+            return; // released twice
+        chunk.released = true;
+        if (count < free.length)
+            free[count++] = chunk;
+    }
+
+}
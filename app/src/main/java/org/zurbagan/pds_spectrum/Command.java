@@ -0,0 +1,27 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * PDS-100G commands, each framed once as STX code ETX
+ */
+enum Command {
+    LAST_SPECTRUM ("G22000", "CMD: get last spectrum"),
+    PREV_SPECTRUM ("G22002", "CMD: get prev spectrum");
+
+    final String code;
+    final String description;
+    final byte[] frame;     // shared by all writes, never modified
+
+    Command(String code, String description) {
+        this.code = code;
+        this.description = description;
+        frame = new byte[code.length() + 2];
+        frame[0] = SpectrumDecoder.STX;
+        for (int i = 0; i < code.length(); i++)
+            frame[i + 1] = (byte) code.charAt(i);
+        frame[frame.length - 1] = SpectrumDecoder.ETX;
+    }
+
+    boolean isSpectrum() {
+        return code.startsWith("G22");
+    }
+}
@@ -0,0 +1,132 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * deadline and retry handling of the outstanding command, worker thread only
+ *
+ * a reply has to be complete within a deadline following from its expected size, and
+ * reply data must not stall for longer than STALL_MILLIS. Otherwise, or if the reply
+ * could not be decoded, the command is sent again up to MAX_RETRIES times before it is
+ * reported as failed.
+ *
+ * timing costs nothing per received chunk: data only updates a timestamp, the single
+ * timer task checks it when due and re-arms itself.
+ */
+final class CommandScheduler {
+
+    interface Timer {
+        void schedule(Runnable task, long delayMillis);
+        void cancel(Runnable task);
+    }
+
+    interface Listener {
+        void onCommandRetry  (Command command, int retry, String reason); // send command again
+        void onCommandFailed (Command command, String reason);
+    }
+
+    static final int MAX_RETRIES = 2;
+    static final long LATENCY_MILLIS = 2000;        // until the device starts to reply
+    static final long STALL_MILLIS = 3000;          // no reply data for this long
+    static final int MIN_BYTES_PER_SECOND = 2000;   // slowest link still accepted
+
+    private final Timer timer;
+    private final Listener listener;
+    private final Runnable check = this::check;
+    private Command command;        // null = nothing outstanding
+    private int retry;
+    private int expectedBytes;
+    private long attemptNanos;
+    private long lastDataNanos;
+    private long deadlineNanos;
+
+    CommandScheduler(Timer timer, Listener listener) {
+        this.timer = timer;
+        this.listener = listener;
+    }
+
+    /**
+     * command sent, replaces an outstanding one
+     *
+     * @param expectedBytes reply size as far as known
+     */
+    void start(Command command, int expectedBytes) {
+        this.command = command;
+        this.expectedBytes = expectedBytes;
+        retry = 0;
+        arm();
+    }
+
+    /**
+     * reply size is known now, e.g. from the R22 header
+     */
+    void expect(int expectedBytes) {
+        this.expectedBytes = expectedBytes;
+        if (command != null)
+            deadlineNanos = attemptNanos + deadlineMillis(expectedBytes) * 1_000_000L;
+    }
+
+    /**
+     * reply data received
+     */
+    void onData() {
+        lastDataNanos = System.nanoTime();
+    }
+
+    /**
+     * reply complete or command abandoned
+     */
+    void done() {
+        command = null;
+        timer.cancel(check);
+    }
+
+    /**
+     * reply unusable, retry now
+     */
+    void fail(String reason) {
+        if (command != null)
+            retryOrFail(reason);
+    }
+
+    boolean isPending() {
+        return command != null;
+    }
+
+    private static long deadlineMillis(int expectedBytes) {
+        return LATENCY_MILLIS + expectedBytes * 1000L / MIN_BYTES_PER_SECOND;
+    }
+
+    private void arm() {
+        attemptNanos = lastDataNanos = System.nanoTime();
+        deadlineNanos = attemptNanos + deadlineMillis(expectedBytes) * 1_000_000L;
+        timer.cancel(check);
+        timer.schedule(check, Math.min(LATENCY_MILLIS, STALL_MILLIS));
+    }
+
+    private void check() {
+        if (command == null)
+            return;
+        long now = System.nanoTime();
+        long stallNanos = lastDataNanos + STALL_MILLIS * 1_000_000L;
+        if (now >= deadlineNanos) {
+            retryOrFail("reply not complete after " + (now - attemptNanos) / 1_000_000L + " ms");
+        } else if (now >= stallNanos) {
+            retryOrFail("no data for " + (now - lastDataNanos) / 1_000_000L + " ms");
+        } else {
+            long due = Math.min(deadlineNanos, stallNanos);
+            timer.schedule(check, (due - now) / 1_000_000L + 1);
+        }
+    }
+
+    private void retryOrFail(String reason) {
+        Command command = this.command;
+        if (retry < MAX_RETRIES) {
+            retry++;
+            arm();
+            listener.onCommandRetry(command, retry, reason);
+        } else {
+            done();
+            listener.onCommandFailed(command, reason);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package org.zurbagan.pds_spectrum;
 
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
@@ -15,6 +16,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 
@@ -26,6 +28,7 @@ public class DevicesFragment extends ListFragment {
     private BluetoothAdapter bluetoothAdapter;
     private final ArrayList<BluetoothDevice> listItems = new ArrayList<>();
     private ArrayAdapter<BluetoothDevice> listAdapter;
+    private String tcpAddress = "";
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -88,6 +91,24 @@ public class DevicesFragment extends ListFragment {
             intent.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
             startActivity(intent);
             return true;
+        } else if (id == R.id.tcp_connect) {
+            EditText address = new EditText(getActivity());
+            address.setSingleLine();
+            address.setHint("host:port");
+            address.setText(tcpAddress);
+            new AlertDialog.Builder(getActivity())
+                    .setTitle("TCP serial bridge")
+                    .setView(address)
+                    .setPositiveButton("Connect", (dialog, which) -> {
+                        tcpAddress = address.getText().toString().trim();
+                        openTerminal(TcpTransport.SCHEME + tcpAddress);
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show();
+            return true;
+        } else if (id == R.id.loopback) {
+            openTerminal(LoopbackTransport.ADDRESS);
+            return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
@@ -107,8 +128,15 @@ public class DevicesFragment extends ListFragment {
     @Override
     public void onListItemClick(@NonNull ListView l, @NonNull View v, int position, long id) {
         BluetoothDevice device = listItems.get(position-1);
+        openTerminal(device.getAddress());
+    }
+
+    /**
+     * @param device bluetooth address, tcp://host:port or loopback
+     */
+    private void openTerminal(String device) {
         Bundle args = new Bundle();
-        args.putString("device", device.getAddress());
+        args.putString("device", device);
         Fragment fragment = new TerminalFragment();
         fragment.setArguments(args);
         getFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
@@ -0,0 +1,153 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * always-on link counters and histograms, to tell a slow device from slow app code
+ *
+ *   reads           transport thread
+ *   commands, replies  worker thread
+ *   dispatch delay  main thread, time from post to run of UI events
+ *
+ * latency of the reply is measured from the command write to its first received
+ * byte and to the decoded end of the reply.
+ */
+final class LinkMetrics {
+
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private final Log2Histogram chunkSize = new Log2Histogram("read size", "bytes");
+    private final Log2Histogram throughput = new Log2Histogram("throughput per second with data", "bytes/s");
+    private final Log2Histogram firstByte = new Log2Histogram("command to first byte", "us");
+    private final Log2Histogram reply = new Log2Histogram("command to complete reply", "us");
+    private final Log2Histogram dispatch = new Log2Histogram("main looper dispatch delay", "us");
+
+    private long startNanos = System.nanoTime();
+    private long bytes;
+    private long reads;
+    private long commands;
+    private long replies;
+    private long timeouts;
+    private long frameErrors;
+    private long windowStartNanos;
+    private long windowBytes;
+    private long lastReadNanos;
+
+    private volatile long commandNanos;
+    private volatile boolean awaitingFirstByte;
+
+    /**
+     * transport thread, for every chunk read
+     */
+    void onRead(int length) {
+        long now = System.nanoTime();
+        if (awaitingFirstByte) {
+            awaitingFirstByte = false;
+            firstByte.record((now - commandNanos) / 1000);
+        }
+        chunkSize.record(length);
+        synchronized (this) {
+            bytes += length;
+            reads++;
+            if (windowBytes == 0 || now - lastReadNanos >= RATE_WINDOW_NANOS) {
+                windowStartNanos = now; // first data or link was idle, partial window is dropped
+                windowBytes = 0;
+            } else if (now - windowStartNanos >= RATE_WINDOW_NANOS) {
+                throughput.record(windowBytes * 1_000_000_000L / (now - windowStartNanos));
+                windowStartNanos = now;
+                windowBytes = 0;
+            }
+            windowBytes += length;
+            lastReadNanos = now;
+        }
+    }
+
+    /**
+     * worker thread, right before the command is written
+     */
+    void onCommand() {
+        commandNanos = System.nanoTime();
+        awaitingFirstByte = true;
+        synchronized (this) {
+            commands++;
+        }
+    }
+
+    /**
+     * worker thread, reply to the last command completely decoded
+     */
+    void onReply() {
+        reply.record((System.nanoTime() - commandNanos) / 1000);
+        synchronized (this) {
+            replies++;
+        }
+    }
+
+    /**
+     * worker thread, reply missing, stalled or corrupt
+     */
+    void onTimeout() {
+        synchronized (this) {
+            timeouts++;
+        }
+    }
+
+    /**
+     * worker thread, garbage dropped or reply with wrong framing
+     */
+    void onFrameError() {
+        synchronized (this) {
+            frameErrors++;
+        }
+    }
+
+    /**
+     * main thread, when running an event posted at postedNanos
+     */
+    void onDispatch(long postedNanos) {
+        dispatch.record((System.nanoTime() - postedNanos) / 1000);
+    }
+
+    void reset() {
+        synchronized (this) {
+            startNanos = System.nanoTime();
+            bytes = reads = commands = replies = timeouts = frameErrors = 0;
+            windowBytes = 0;
+        }
+        awaitingFirstByte = false;
+        chunkSize.reset();
+        throughput.reset();
+        firstByte.reset();
+        reply.reset();
+        dispatch.reset();
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            sb.append(String.format(Locale.US, "%.1f s: %d bytes in %d reads, %.0f bytes/s average\n",
+                    seconds, bytes, reads, seconds > 0 ? bytes / seconds : 0));
+            sb.append(String.format(Locale.US, "%d commands, %d complete replies, %d failed, %d framing errors\n",
+                    commands, replies, timeouts, frameErrors));
+        }
+        chunkSize.report(sb);
+        throughput.report(sb);
+        firstByte.report(sb);
+        reply.report(sb);
+        dispatch.report(sb);
+        return sb.toString();
+    }
+
+    void dump(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(report().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}
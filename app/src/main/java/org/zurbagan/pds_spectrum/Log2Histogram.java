@@ -0,0 +1,82 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Locale;
+
+/**
+ * histogram with power of 2 buckets: bucket 0 counts 0, bucket k counts [2^(k-1), 2^k)
+ *
+ * fixed memory and O(1) record, precise enough to tell 1 ms from 10 ms.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+final class Log2Histogram {
+
+    private final String name;
+    private final String unit;
+    private final long[] buckets = new long[64];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    Log2Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    synchronized void record(long value) {
+        if (value < 0)
+            value = 0;
+        buckets[64 - Long.numberOfLeadingZeros(value)]++;
+        count++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @param q 0..1
+     */
+    synchronized long percentile(double q) {
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * count));
+        long seen = 0;
+        for (int k = 0; k < buckets.length; k++) {
+            seen += buckets[k];
+            if (seen >= rank)
+                return k == 0 ? 0 : Math.min(max, (1L << k) - 1);
+        }
+        return max;
+    }
+
+    synchronized void reset() {
+        for (int k = 0; k < buckets.length; k++)
+            buckets[k] = 0;
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    synchronized void report(StringBuilder sb) {
+        sb.append(name).append(" [").append(unit).append("]\n");
+        if (count == 0) {
+            sb.append("  no samples\n");
+            return;
+        }
+        sb.append(String.format(Locale.US, "  n=%d mean=%d min=%d max=%d p50<=%d p90<=%d p99<=%d\n",
+                count, sum / count, min, max, percentile(0.5), percentile(0.9), percentile(0.99)));
+        for (int k = 0; k < buckets.length; k++) {
+            if (buckets[k] == 0)
+                continue;
+            long from = k == 0 ? 0 : 1L << (k - 1);
+            long to = k == 0 ? 0 : (1L << k) - 1;
+            sb.append(String.format(Locale.US, "  %10d..%-10d %d\n", from, to, buckets[k]));
+        }
+    }
+
+}
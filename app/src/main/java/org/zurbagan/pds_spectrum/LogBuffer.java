@@ -0,0 +1,86 @@
+package org.zurbagan.pds_spectrum;
+
+import android.text.SpannableStringBuilder;
+
+/**
+ * bounded terminal log: ring buffer of completed lines plus the line currently written
+ *
+ * append is O(1) per line, the oldest lines are dropped when the buffer is full and
+ * overlong lines are wrapped, so memory use has a fixed ceiling.
+ */
+final class LogBuffer {
+
+    private final CharSequence[] lines;
+    private final int maxLineLength;
+    private int head;       // index of oldest line
+    private int count;
+    private SpannableStringBuilder open = new SpannableStringBuilder();
+
+    LogBuffer(int maxLines, int maxLineLength) {
+        this.lines = new CharSequence[maxLines];
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * @return completed lines plus the open line if not empty
+     */
+    int size() {
+        return count + (open.length() > 0 ? 1 : 0);
+    }
+
+    /**
+     * @param i 0 = oldest line
+     */
+    CharSequence get(int i) {
+        if (i == count)
+            return open;
+        return lines[(head + i) % lines.length];
+    }
+
+    /**
+     * text may contain several lines, spans are kept
+     */
+    void append(CharSequence text) {
+        int begin = 0;
+        for (int pos = 0; pos < text.length(); pos++) {
+            if (text.charAt(pos) == '\n') {
+                open.append(text, begin, pos);
+                commit();
+                begin = pos + 1;
+            } else if (open.length() + pos - begin >= maxLineLength) {
+                open.append(text, begin, pos);
+                commit(); // wrap
+                begin = pos;
+            }
+        }
+        open.append(text, begin, text.length());
+    }
+
+    /**
+     * remove last characters of the open line
+     */
+    void trimEnd(int n) {
+        if (open.length() >= n)
+            open.delete(open.length() - n, open.length());
+    }
+
+    void clear() {
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = null;
+        head = 0;
+        count = 0;
+        open = new SpannableStringBuilder();
+    }
+
+    private void commit() {
+        if (count == lines.length) {
+            lines[head] = open;
+            head = (head + 1) % lines.length;
+        } else {
+            lines[(head + count) % lines.length] = open;
+            count++;
+        }
+        open = new SpannableStringBuilder();
+    }
+
+}
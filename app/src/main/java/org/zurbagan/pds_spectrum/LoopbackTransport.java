@@ -0,0 +1,63 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * local loopback, written data is read back like from a serial loopback plug
+ *
+ * for testing the terminal and the service without any device
+ */
+final class LoopbackTransport implements Transport {
+
+    static final String ADDRESS = "loopback";
+
+    private final ChunkPool pool = new ChunkPool(1024, 16);
+    private volatile SerialListener listener;
+    private ExecutorService reader;
+
+    @Override
+    public String getName() {
+        return ADDRESS;
+    }
+
+    @Override
+    public synchronized void connect(SerialListener listener) throws IOException {
+        this.listener = listener;
+        reader = Executors.newSingleThreadExecutor();
+        reader.execute(() -> {
+            SerialListener l = this.listener;
+            if (l != null)
+                l.onSerialConnect();
+        });
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        listener = null; // ignore remaining data
+        if (reader != null) {
+            reader.shutdownNow();
+            reader = null;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] data) throws IOException {
+        if (reader == null)
+            throw new IOException("not connected");
+        for (int pos = 0; pos < data.length; pos += pool.getChunkSize()) {
+            ChunkPool.Chunk chunk = pool.obtain();
+            chunk.length = Math.min(pool.getChunkSize(), data.length - pos);
+            System.arraycopy(data, pos, chunk.data, 0, chunk.length);
+            reader.execute(() -> {
+                SerialListener l = listener;
+                if (l != null)
+                    l.onSerialRead(chunk);
+                else
+                    chunk.release();
+            });
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * min/max decimation of spectrum bins for plotting, no UI dependencies
+ *
+ * level k holds min and max of blocks of 2^k bins, level 0 are the bins. The min/max of
+ * any bin range is combined from O(log n) blocks, so computing the plot columns costs
+ * the same at any zoom level. Arrays are kept for the next spectrum with as many bins.
+ *
+ * not thread safe
+ */
+final class MinMaxPyramid {
+
+    private int bins;
+    private int levels;
+    private int[][] min = new int[0][];
+    private int[][] max = new int[0][];
+
+    void build(final int[] values, final int bins) {
+        int levels = 1;
+        while ((1 << (levels - 1)) < bins)
+            levels++;
+        if (bins != this.bins || levels != this.levels) {
+            min = new int[levels][];
+            max = new int[levels][];
+            for (int k = 0; k < levels; k++) {
+                min[k] = new int[(bins + (1 << k) - 1) >> k];
+                max[k] = k == 0 ? min[0] : new int[min[k].length]; // min = max for single bins
+            }
+            this.bins = bins;
+            this.levels = levels;
+        }
+        System.arraycopy(values, 0, min[0], 0, bins);
+        for (int k = 1; k < levels; k++) {
+            final int[] lowerMin = min[k - 1], lowerMax = max[k - 1];
+            final int[] levelMin = min[k], levelMax = max[k];
+            for (int i = 0; i < levelMin.length; i++) {
+                int a = 2 * i, b = a + 1;
+                if (b < lowerMin.length) {
+                    levelMin[i] = Math.min(lowerMin[a], lowerMin[b]);
+                    levelMax[i] = Math.max(lowerMax[a], lowerMax[b]);
+                } else {
+                    levelMin[i] = lowerMin[a];
+                    levelMax[i] = lowerMax[a];
+                }
+            }
+        }
+    }
+
+    int getBins() {
+        return bins;
+    }
+
+    /**
+     * split bins [from, to) into columns of about equal width, at least one bin each
+     *
+     * @param outMin, outMax min and max count per column, need room for columns values
+     */
+    void columns(int from, int to, int columns, final int[] outMin, final int[] outMax) {
+        from = Math.max(0, Math.min(from, bins - 1));
+        to = Math.max(from + 1, Math.min(to, bins));
+        final long width = to - from;
+        for (int c = 0; c < columns; c++) {
+            int a = from + (int) (c * width / columns);
+            int b = Math.max(a + 1, from + (int) ((c + 1) * width / columns));
+            int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+            while (a < b) {
+                int k = a == 0 ? levels - 1 : Math.min(Integer.numberOfTrailingZeros(a), levels - 1);
+                while (a + (1 << k) > b && k > 0)
+                    k--;    // largest aligned block within [a, b)
+                int i = a >> k;
+                lo = Math.min(lo, min[k][i]);
+                hi = Math.max(hi, max[k][i]);
+                a += 1 << k;
+            }
+            outMin[c] = lo;
+            outMax[c] = hi;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Arrays;
+
+/**
+ * nuclide identification from peak energies, no UI dependencies
+ *
+ * the bundled library is flattened into gamma lines sorted by energy. Every peak looks up
+ * the lines within its tolerance window by binary search. A nuclide scores the intensity of
+ * its matched lines relative to the intensity of all its lines within the energy range of
+ * the spectrum, and is only reported if its strongest line in range was found.
+ *
+ * nuclide ids are the position in NUCLIDES and are stored as bit mask in the archive,
+ * so new nuclides have to be appended, never inserted or removed. At most 64 nuclides.
+ *
+ * the line index is shared, the per nuclide scores are workspaces: not thread safe,
+ * use one instance per thread
+ */
+final class NuclideLibrary {
+
+    static final float RESOLUTION = 0.07f;      // FWHM / E at 662 keV, PDS-100G CsI(Tl)
+    static final float MIN_TOLERANCE = 3f;      // keV
+    static final float MIN_SCORE = 0.5f;
+
+    /*
+     * name, then energy in keV and emission probability in % per line. Daughters in
+     * secular equilibrium are included in the chain parents (Ra-226, Th-232)
+     */
+    private static final Object[][] NUCLIDES = {
+            {"Am-241", 59.54, 35.9},
+            {"Ba-133", 81.00, 34.1, 276.40, 7.2, 302.85, 18.3, 356.01, 62.1, 383.85, 8.9},
+            {"Co-57", 122.06, 85.6, 136.47, 10.7},
+            {"Co-60", 1173.23, 99.85, 1332.49, 99.98},
+            {"Cs-137", 661.66, 85.1},
+            {"Cs-134", 563.25, 8.3, 569.33, 15.4, 604.72, 97.6, 795.86, 85.5, 801.95, 8.7},
+            {"Eu-152", 121.78, 28.5, 244.70, 7.6, 344.28, 26.6, 778.90, 12.9, 964.08, 14.5, 1085.84, 10.1, 1112.08, 13.7, 1408.01, 20.9},
+            {"I-131", 284.31, 6.1, 364.49, 81.5, 636.99, 7.2},
+            {"K-40", 1460.82, 10.66},
+            {"Na-22", 511.00, 180.7, 1274.54, 99.9},
+            {"Ra-226", 186.21, 3.6, 242.00, 7.3, 295.22, 18.4, 351.93, 35.6, 609.31, 45.5, 768.36, 4.9, 1120.29, 14.9, 1238.11, 5.8, 1764.49, 15.3, 2204.21, 4.9},
+            {"Th-232", 238.63, 43.6, 338.32, 11.3, 583.19, 30.6, 727.33, 6.7, 860.56, 4.5, 911.20, 25.8, 968.97, 15.8, 2614.51, 35.6},
+            {"U-235", 143.76, 11.0, 163.36, 5.1, 185.72, 57.2, 205.32, 5.0},
+            {"U-238", 63.29, 3.7, 92.59, 4.3, 766.36, 0.3, 1001.03, 0.84},
+            {"Ir-192", 295.96, 28.7, 308.46, 29.7, 316.51, 82.9, 468.07, 47.8, 604.41, 8.2, 612.46, 5.3},
+            {"Tc-99m", 140.51, 89.0},
+            {"F-18", 511.00, 193.5},
+            {"Mn-54", 834.85, 99.98},
+            {"Se-75", 121.12, 17.2, 136.00, 58.5, 264.66, 58.9, 279.54, 25.0, 400.66, 11.4},
+            {"Co-58", 511.00, 29.9, 810.76, 99.4},
+            {"Zn-65", 1115.54, 50.0},
+            {"Y-88", 898.04, 93.7, 1836.06, 99.2},
+            {"Lu-177", 112.95, 6.2, 208.37, 10.4},
+            {"Ga-67", 93.31, 38.8, 184.58, 21.4, 300.22, 16.6},
+            {"In-111", 171.28, 90.7, 245.35, 94.1},
+            {"Tl-201", 135.34, 2.6, 167.43, 10.0},
+    };
+
+    static final int COUNT = NUCLIDES.length;
+    private static final String[] names = new String[COUNT];
+    private static final double[] lineEnergy;   // sorted
+    private static final int[] lineNuclide;
+    private static final float[] lineIntensity;
+
+    static {
+        int lines = 0;
+        for (Object[] nuclide : NUCLIDES)
+            lines += (nuclide.length - 1) / 2;
+        long[] order = new long[lines];     // energy in eV << 16 | line, sorts by energy
+        double[] energy = new double[lines];
+        int[] nuclideOf = new int[lines];
+        float[] intensity = new float[lines];
+        int n = 0;
+        for (int i = 0; i < COUNT; i++) {
+            names[i] = (String) NUCLIDES[i][0];
+            for (int j = 1; j < NUCLIDES[i].length; j += 2, n++) {
+                energy[n] = (Double) NUCLIDES[i][j];
+                intensity[n] = ((Double) NUCLIDES[i][j + 1]).floatValue();
+                nuclideOf[n] = i;
+                order[n] = Math.round(energy[n] * 1000) << 16 | n;
+            }
+        }
+        Arrays.sort(order);
+        lineEnergy = new double[lines];
+        lineNuclide = new int[lines];
+        lineIntensity = new float[lines];
+        for (int k = 0; k < lines; k++) {
+            int line = (int) (order[k] & 0xffff);
+            lineEnergy[k] = energy[line];
+            lineNuclide[k] = nuclideOf[line];
+            lineIntensity[k] = intensity[line];
+        }
+    }
+
+    /**
+     * identified nuclides of one spectrum, best score first
+     */
+    static final class Matches {
+        final int count;
+        final int[] nuclide;
+        final float[] score;        // 0..1, NaN if read back from the archive
+        final long mask;            // bit per nuclide id
+
+        Matches(int count, long mask) {
+            this.count = count;
+            this.mask = mask;
+            nuclide = new int[count];
+            score = new float[count];
+        }
+
+        static Matches fromMask(long mask) {
+            Matches m = new Matches(Long.bitCount(mask), mask);
+            int n = 0;
+            for (int i = 0; i < 64; i++) {
+                if ((mask & 1L << i) != 0) {
+                    m.nuclide[n] = i;
+                    m.score[n++] = Float.NaN;
+                }
+            }
+            return m;
+        }
+
+        String name(int i) {
+            return getName(nuclide[i]);
+        }
+    }
+
+    private final float[] matched = new float[COUNT];
+    private final float[] expected = new float[COUNT];
+    private final float[] strongest = new float[COUNT];    // intensity of strongest line in range
+    private final boolean[] strongestFound = new boolean[COUNT];
+    private final int[] order = new int[COUNT];
+
+    static String getName(int nuclide) {
+        return nuclide < COUNT ? names[nuclide] : "#" + nuclide;
+    }
+
+    /**
+     * detector FWHM in keV at this energy, relative resolution goes with 1 / sqrt(E)
+     */
+    static float fwhm(float energy) {
+        return RESOLUTION * 661.66f * (float) Math.sqrt(Math.max(energy, 0f) / 661.66f);
+    }
+
+    /**
+     * energy window for a peak, half the detector FWHM at this energy
+     */
+    static float tolerance(float energy) {
+        return Math.max(MIN_TOLERANCE, 0.5f * fwhm(energy));
+    }
+
+    /**
+     * @return first line with energy >= e
+     */
+    static int lowerBound(double e) {
+        int lo = 0, hi = lineEnergy.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lineEnergy[mid] < e)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    Matches identify(Spectrum spectrum) {
+        Calibration.Table calibration = Calibration.table(spectrum);
+        return identify(spectrum.peaks, calibration.energy(0), calibration.energy(spectrum.bins - 1));
+    }
+
+    /**
+     * @param minEnergy, maxEnergy energy range of the spectrum, lines outside are not expected
+     */
+    Matches identify(PeakFinder.Peaks peaks, float minEnergy, float maxEnergy) {
+        Arrays.fill(matched, 0f);
+        Arrays.fill(expected, 0f);
+        Arrays.fill(strongest, 0f);
+        Arrays.fill(strongestFound, false);
+        for (int k = lowerBound(minEnergy); k < lineEnergy.length && lineEnergy[k] <= maxEnergy; k++) {
+            int nuclide = lineNuclide[k];
+            expected[nuclide] += lineIntensity[k];
+            strongest[nuclide] = Math.max(strongest[nuclide], lineIntensity[k]);
+        }
+        for (int p = 0; peaks != null && p < peaks.count; p++) {
+            float e = peaks.energy[p];
+            float tolerance = tolerance(e);
+            for (int k = lowerBound(e - tolerance); k < lineEnergy.length && lineEnergy[k] <= e + tolerance; k++) {
+                if (lineEnergy[k] < minEnergy || lineEnergy[k] > maxEnergy)
+                    continue;
+                int nuclide = lineNuclide[k];
+                double d = (lineEnergy[k] - e) / tolerance;
+                matched[nuclide] += lineIntensity[k] * (float) (1.0 - 0.5 * d * d);   // closer is better
+                if (lineIntensity[k] == strongest[nuclide])
+                    strongestFound[nuclide] = true;
+            }
+        }
+        int n = 0;
+        long mask = 0;
+        for (int i = 0; i < COUNT; i++) {
+            if (strongestFound[i] && matched[i] >= MIN_SCORE * expected[i]) {
+                order[n++] = i;
+                mask |= 1L << i;
+            }
+        }
+        Matches matches = new Matches(n, mask);
+        for (int i = 0; i < n; i++) {
+            matches.nuclide[i] = order[i];
+            matches.score[i] = Math.min(1f, matched[order[i]] / expected[order[i]]);
+        }
+        for (int i = 1; i < n; i++) {    // insertion sort by score, only a few matches
+            for (int j = i; j > 0 && matches.score[j] > matches.score[j - 1]; j--) {
+                float s = matches.score[j]; matches.score[j] = matches.score[j - 1]; matches.score[j - 1] = s;
+                int id = matches.nuclide[j]; matches.nuclide[j] = matches.nuclide[j - 1]; matches.nuclide[j - 1] = id;
+            }
+        }
+        return matches;
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Arrays;
+
+/**
+ * peak search on spectrum bins, no UI dependencies
+ *
+ * background: SNIP (statistics-sensitive non-linear iterative peak clipping) on
+ * log-log-sqrt transformed counts, window growing up to the expected FWHM.
+ * detection: smoothed second difference, a box of FWHM width around the channel weighted 2
+ * against the boxes left and right of it weighted -1, divided by its standard deviation.
+ * Linear background cancels out, box sums come from one prefix sum, so detection is O(n)
+ * and SNIP O(n * FWHM). Candidates are kept if their net counts above the SNIP background
+ * are significant.
+ *
+ * workspaces are kept for the next spectrum, not thread safe, use one finder per thread
+ */
+final class PeakFinder {
+
+    static final float MIN_SCORE = 4f;          // second difference / sigma, 3 gives false peaks in noise
+    static final float MIN_SIGNIFICANCE = 3f;   // net counts / sigma
+
+    /**
+     * peaks of one spectrum, ordered by channel
+     */
+    static final class Peaks {
+        final int count;
+        final float[] channel;          // centroid, fractional
+        final float[] energy;           // keV, from Calibration
+        final float[] net;              // counts above background within +-FWHM
+        final float[] significance;
+
+        Peaks(int count) {
+            this.count = count;
+            channel = new float[count];
+            energy = new float[count];
+            net = new float[count];
+            significance = new float[count];
+        }
+    }
+
+    private double[] clipped = new double[0];
+    private double[] next = new double[0];
+    private double[] background = new double[0];
+    private long[] prefix = new long[1];
+    private float[] score = new float[0];
+    private int[] candidates = new int[16];
+    private float[] centroids = new float[16];
+    private float[] nets = new float[16];
+    private float[] significances = new float[16];
+
+    /**
+     * FWHM in channels if nothing better is known, PDS-100G resolution is about 7% at 662 keV
+     */
+    static int defaultFwhm(int bins) {
+        return Math.max(3, bins / 100);
+    }
+
+    Peaks find(Spectrum spectrum) {
+        return find(spectrum.values, spectrum.bins, defaultFwhm(spectrum.bins), Calibration.table(spectrum));
+    }
+
+    /**
+     * @param fwhm expected peak width in channels
+     */
+    Peaks find(final int[] values, final int bins, int fwhm, Calibration.Table calibration) {
+        ensureCapacity(bins);
+        snip(values, bins, fwhm);
+        final int half = Math.max(1, fwhm / 2);
+        final int width = 2 * half + 1;
+        final long[] prefix = this.prefix;
+        for (int i = 0; i < bins; i++)
+            prefix[i + 1] = prefix[i] + values[i];
+
+        // smoothed second difference, valid where all three boxes are within the spectrum
+        final int first = width + half, last = bins - width - half - 1;
+        final float[] score = this.score;
+        for (int i = first; i <= last; i++) {
+            long center = prefix[i + half + 1] - prefix[i - half];
+            long left = prefix[i - width + half + 1] - prefix[i - width - half];
+            long right = prefix[i + width + half + 1] - prefix[i + width - half];
+            long s = 2 * center - left - right;
+            long variance = 4 * center + left + right;
+            score[i] = variance > 0 ? (float) (s / Math.sqrt(variance)) : 0f;
+        }
+
+        // best channel of each run above MIN_SCORE
+        int n = 0;
+        int best = -1;
+        for (int i = first; i <= last + 1; i++) {
+            if (i <= last && score[i] > MIN_SCORE) {
+                if (best < 0 || score[i] > score[best])
+                    best = i;
+            } else if (best >= 0 && n > 0 && best - candidates[n - 1] < width) {
+                if (score[best] > score[candidates[n - 1]])
+                    candidates[n - 1] = best;   // same peak split by a noise dip
+                best = -1;
+            } else if (best >= 0) {
+                if (n == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, 2 * n);
+                    centroids = new float[2 * n];
+                    nets = new float[2 * n];
+                    significances = new float[2 * n];
+                }
+                candidates[n++] = best;
+                best = -1;
+            }
+        }
+
+        // net counts above SNIP background, keep significant ones
+        final double[] bg = this.background;
+        int kept = 0;
+        for (int c = 0; c < n; c++) {
+            int i = candidates[c];
+            double net = 0, total = 0, weight = 0, moment = 0;
+            for (int j = Math.max(0, i - width); j <= Math.min(bins - 1, i + width); j++) {
+                double above = values[j] - bg[j];
+                net += above;
+                total += values[j];
+                if (j >= i - half && j <= i + half && above > 0) {
+                    weight += above;
+                    moment += above * j;
+                }
+            }
+            float significance = total > 0 ? (float) (net / Math.sqrt(total)) : 0f;
+            if (net <= 0 || significance < MIN_SIGNIFICANCE)
+                continue;
+            centroids[kept] = (float) (weight > 0 ? moment / weight : i);
+            nets[kept] = (float) net;
+            significances[kept] = significance;
+            kept++;
+        }
+        Peaks peaks = new Peaks(kept);
+        System.arraycopy(centroids, 0, peaks.channel, 0, kept);
+        System.arraycopy(nets, 0, peaks.net, 0, kept);
+        System.arraycopy(significances, 0, peaks.significance, 0, kept);
+        for (int c = 0; c < kept; c++)
+            peaks.energy[c] = calibration.energy(peaks.channel[c]);
+        return peaks;
+    }
+
+    /**
+     * SNIP background of values into background[0, bins)
+     */
+    private void snip(final int[] values, final int bins, final int windows) {
+        final double[] v = clipped, t = next;
+        for (int i = 0; i < bins; i++)
+            v[i] = Math.log(Math.log(Math.sqrt(values[i] + 1.0) + 1.0) + 1.0);
+        for (int p = 1; p <= windows; p++) {
+            for (int i = p; i < bins - p; i++)
+                t[i] = Math.min(v[i], 0.5 * (v[i - p] + v[i + p]));
+            if (bins - 2 * p > 0)
+                System.arraycopy(t, p, v, p, bins - 2 * p);
+        }
+        final double[] bg = background;
+        for (int i = 0; i < bins; i++) {
+            double s = Math.exp(Math.exp(v[i]) - 1.0) - 1.0;
+            bg[i] = s * s - 1.0;
+        }
+    }
+
+    private void ensureCapacity(int bins) {
+        if (clipped.length < bins) {
+            clipped = new double[bins];
+            next = new double[bins];
+            background = new double[bins];
+            prefix = new long[bins + 1];
+            score = new float[bins];
+        }
+    }
+
+}
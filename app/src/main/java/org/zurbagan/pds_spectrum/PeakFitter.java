@@ -0,0 +1,301 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Arrays;
+
+/**
+ * fit of a gaussian on a linear background to each peak, no UI dependencies
+ *
+ *   f(x) = a * exp(-(x - mu)^2 / (2 sigma^2)) + b0 + b1 * (x - mu0)
+ *
+ * over a region of interest of +-2 FWHM around the peak found by PeakFinder, weighted
+ * least squares with Poisson weights 1 / max(counts, 1), solved by Levenberg-Marquardt.
+ * The FWHM for region and initial sigma is expected from the detector resolution at the
+ * peak energy (NuclideLibrary.fwhm), converted to channels by the calibration slope.
+ * The region ends halfway to a neighbouring peak, so the neighbour does not bias the fit.
+ * Jacobian, normal equations and trial parameters live in workspaces kept between fits,
+ * only the result object of a spectrum is allocated. Overlapping peaks are fitted
+ * independently, each as a single gaussian.
+ *
+ * not thread safe, use one fitter per thread
+ */
+final class PeakFitter {
+
+    static final int MAX_ITERATIONS = 50;
+    private static final int P = 5;                 // a, mu, sigma, b0, b1
+    private static final double SQRT_2PI = Math.sqrt(2 * Math.PI);
+    static final double FWHM_PER_SIGMA = 2 * Math.sqrt(2 * Math.log(2));
+    static final float MIN_FWHM = 3f;               // channels, below that too few points to fit
+
+    /**
+     * fit results of one spectrum, same order as the peaks. Failed fits have NaN area
+     */
+    static final class Fits {
+        final int count;
+        final float[] centroid;     // channel
+        final float[] energy;       // keV
+        final float[] fwhm;         // keV
+        final float[] area;         // net counts
+        final float[] areaError;    // 1 sigma
+        final float[] chi2;         // reduced
+
+        Fits(int count) {
+            this.count = count;
+            centroid = new float[count];
+            energy = new float[count];
+            fwhm = new float[count];
+            area = new float[count];
+            areaError = new float[count];
+            chi2 = new float[count];
+        }
+    }
+
+    private double[] y = new double[0];
+    private double[] weight = new double[0];
+    private double[] jacobian = new double[0];      // n * P, row per channel
+    private final double[] params = new double[P];
+    private final double[] trial = new double[P];
+    private final double[] alpha = new double[P * P];  // J^T W J
+    private final double[] beta = new double[P];       // J^T W r
+    private final double[] matrix = new double[P * (P + 1)];
+    private final double[] delta = new double[P];
+    private final double[] covariance = new double[P * P];
+    private final double[] gradient = new double[P];
+    private double mu0;
+    private int iterations;
+
+    Fits fitAll(Spectrum spectrum) {
+        PeakFinder.Peaks peaks = spectrum.peaks;
+        int count = peaks != null ? peaks.count : 0;
+        Fits fits = new Fits(count);
+        Calibration.Table calibration = Calibration.table(spectrum);
+        for (int i = 0; i < count; i++) {
+            float channel = peaks.channel[i];
+            float fwhm = expectedFwhm(calibration, channel);
+            int half = Math.round(2 * fwhm);
+            int from = Math.max(0, Math.round(channel) - half);
+            int to = Math.min(spectrum.bins, Math.round(channel) + half + 1);
+            if (i > 0)
+                from = Math.max(from, (int) Math.ceil((peaks.channel[i - 1] + channel) / 2));
+            if (i < count - 1)
+                to = Math.min(to, (int) ((channel + peaks.channel[i + 1]) / 2) + 1);
+            fit(spectrum.values, channel, from, to, fwhm, calibration, fits, i);
+        }
+        return fits;
+    }
+
+    /**
+     * FWHM in channels at a channel, detector resolution divided by keV per channel there.
+     * PeakFinder.defaultFwhm if the calibration is not increasing
+     */
+    static float expectedFwhm(Calibration.Table calibration, float channel) {
+        Calibration c = calibration.calibration;
+        double slope = c.c1 + 2 * c.c2 * channel;
+        if (!(slope > 0))
+            return PeakFinder.defaultFwhm(calibration.bins);
+        double fwhm = NuclideLibrary.fwhm(calibration.energy(channel)) / slope;
+        return (float) Math.max(MIN_FWHM, Math.min(fwhm, calibration.bins / 4.0));
+    }
+
+    /**
+     * fit one peak, result goes to fits at index i
+     *
+     * @param from, to region of interest [from, to) around channel
+     * @param fwhm expected width in channels, initial guess
+     */
+    void fit(final int[] values, float channel, int from, int to, float fwhm, Calibration.Table calibration,
+             Fits fits, int i) {
+        int n = to - from;
+        fits.centroid[i] = channel;
+        fits.energy[i] = calibration.energy(channel);
+        fits.area[i] = fits.areaError[i] = fits.fwhm[i] = fits.chi2[i] = Float.NaN;
+        if (n < 2 * P)
+            return;
+        ensureCapacity(n);
+        for (int k = 0; k < n; k++) {
+            y[k] = values[from + k];
+            weight[k] = 1.0 / Math.max(values[from + k], 1);
+        }
+
+        // initial guess: background through the ROI ends, gaussian of the expected width
+        double left = (y[0] + y[1] + y[2]) / 3, right = (y[n - 1] + y[n - 2] + y[n - 3]) / 3;
+        mu0 = channel - from;
+        params[3] = left + (right - left) * mu0 / (n - 1);
+        params[4] = (right - left) / (n - 1);
+        params[0] = Math.max(1, y[(int) Math.round(mu0)] - params[3]);
+        params[1] = mu0;
+        final double sigma0 = fwhm / FWHM_PER_SIGMA;
+        params[2] = sigma0;
+
+        double chi2 = levenbergMarquardt(n);
+        double a = params[0], mu = params[1], sigma = Math.abs(params[2]);
+        if (Double.isNaN(chi2) || a <= 0 || mu < 0 || mu > n - 1 || sigma < 0.2 * sigma0 ||
+                sigma > n / 2.0 || !invert(alpha, covariance))
+            return;
+        // area = a sigma sqrt(2 pi), error from covariance of a and sigma
+        gradient[0] = sigma * SQRT_2PI;
+        gradient[2] = a * SQRT_2PI;
+        double variance = gradient[0] * gradient[0] * covariance[0] +
+                2 * gradient[0] * gradient[2] * covariance[2] +
+                gradient[2] * gradient[2] * covariance[2 * P + 2];
+        double reduced = chi2 / (n - P);
+        float centroid = (float) (from + mu);
+        float w = (float) (sigma * FWHM_PER_SIGMA);
+        fits.centroid[i] = centroid;
+        fits.energy[i] = calibration.energy(centroid);
+        fits.fwhm[i] = calibration.energy(centroid + w / 2) - calibration.energy(centroid - w / 2);
+        fits.area[i] = (float) (a * sigma * SQRT_2PI);
+        fits.areaError[i] = (float) Math.sqrt(Math.max(variance, 0) * Math.max(reduced, 1));
+        fits.chi2[i] = (float) reduced;
+    }
+
+    int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * fit params over y[0, n), alpha holds J^T W J of the solution afterwards
+     *
+     * @return chi square, NaN if the model could not be evaluated
+     */
+    private double levenbergMarquardt(int n) {
+        double lambda = 1e-3;
+        double chi2 = normalEquations(n);
+        iterations = 0;
+        while (iterations++ < MAX_ITERATIONS) {
+            boolean improved = false;
+            while (lambda < 1e10) {
+                for (int r = 0; r < P; r++) {
+                    for (int c = 0; c < P; c++)
+                        matrix[r * (P + 1) + c] = alpha[r * P + c] * (r == c ? 1 + lambda : 1);
+                    matrix[r * (P + 1) + P] = beta[r];
+                }
+                if (!solve(matrix, delta))
+                    return Double.NaN;
+                for (int p = 0; p < P; p++)
+                    trial[p] = params[p] + delta[p];
+                double trialChi2 = chiSquare(trial, n);
+                if (trialChi2 < chi2) {
+                    System.arraycopy(trial, 0, params, 0, P);
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    improved = chi2 - trialChi2 > 1e-6 * chi2;
+                    chi2 = normalEquations(n);
+                    break;
+                }
+                lambda *= 10;
+            }
+            if (!improved)
+                break;
+        }
+        return chi2;
+    }
+
+    private double model(double[] p, double x) {
+        double d = (x - p[1]) / p[2];
+        return p[0] * Math.exp(-0.5 * d * d) + p[3] + p[4] * (x - mu0);
+    }
+
+    private double chiSquare(double[] p, int n) {
+        double chi2 = 0;
+        for (int k = 0; k < n; k++) {
+            double r = y[k] - model(p, k);
+            chi2 += weight[k] * r * r;
+        }
+        return chi2;
+    }
+
+    /**
+     * jacobian of params, alpha and beta
+     *
+     * @return chi square of params
+     */
+    private double normalEquations(int n) {
+        final double a = params[0], mu = params[1], sigma = params[2];
+        final double[] jac = jacobian;
+        double chi2 = 0;
+        Arrays.fill(alpha, 0);
+        Arrays.fill(beta, 0);
+        for (int k = 0; k < n; k++) {
+            double d = (k - mu) / sigma;
+            double g = Math.exp(-0.5 * d * d);
+            int row = k * P;
+            jac[row] = g;
+            jac[row + 1] = a * g * d / sigma;
+            jac[row + 2] = a * g * d * d / sigma;
+            jac[row + 3] = 1;
+            jac[row + 4] = k - mu0;
+            double r = y[k] - (a * g + params[3] + params[4] * (k - mu0));
+            double w = weight[k];
+            chi2 += w * r * r;
+            for (int i = 0; i < P; i++) {
+                double wj = w * jac[row + i];
+                beta[i] += wj * r;
+                for (int j = 0; j <= i; j++)
+                    alpha[i * P + j] += wj * jac[row + j];
+            }
+        }
+        for (int i = 0; i < P; i++)
+            for (int j = i + 1; j < P; j++)
+                alpha[i * P + j] = alpha[j * P + i];
+        return chi2;
+    }
+
+    /**
+     * gaussian elimination with partial pivoting, m is P x (P + 1) augmented and destroyed
+     *
+     * @return false if singular
+     */
+    private static boolean solve(double[] m, double[] x) {
+        final int w = P + 1;
+        for (int col = 0; col < P; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < P; r++)
+                if (Math.abs(m[r * w + col]) > Math.abs(m[pivot * w + col]))
+                    pivot = r;
+            if (m[pivot * w + col] == 0)
+                return false;
+            if (pivot != col) {
+                for (int c = col; c < w; c++) {
+                    double t = m[col * w + c]; m[col * w + c] = m[pivot * w + c]; m[pivot * w + c] = t;
+                }
+            }
+            for (int r = col + 1; r < P; r++) {
+                double f = m[r * w + col] / m[col * w + col];
+                for (int c = col; c < w; c++)
+                    m[r * w + c] -= f * m[col * w + c];
+            }
+        }
+        for (int r = P - 1; r >= 0; r--) {
+            double s = m[r * w + P];
+            for (int c = r + 1; c < P; c++)
+                s -= m[r * w + c] * x[c];
+            x[r] = s / m[r * w + r];
+        }
+        return true;
+    }
+
+    /**
+     * inverse of a P x P matrix column by column, uses matrix and delta
+     */
+    private boolean invert(double[] a, double[] inverse) {
+        for (int col = 0; col < P; col++) {
+            for (int r = 0; r < P; r++) {
+                System.arraycopy(a, r * P, matrix, r * (P + 1), P);
+                matrix[r * (P + 1) + P] = r == col ? 1 : 0;
+            }
+            if (!solve(matrix, delta))
+                return false;
+            for (int r = 0; r < P; r++)
+                inverse[r * P + col] = delta[r];
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int n) {
+        if (y.length < n) {
+            y = new double[n];
+            weight = new double[n];
+            jacobian = new double[n * P];
+        }
+    }
+
+}
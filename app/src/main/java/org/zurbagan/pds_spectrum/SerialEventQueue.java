@@ -0,0 +1,351 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Executor;
+
+/**
+ * queue serial events while the UI is detached
+ *
+ * keeps up to memoryLimit items in memory. Further items are collected in an overflow
+ * list, written to a spill file in batches and read back in order after the in-memory
+ * items, so the order is always preserved. Exceptions are spilled as message only and
+ * come back as IOException.
+ *
+ * the spill file is only written and read by transfer() on the io executor, add() and
+ * poll() never touch the disk. If poll() finds memory empty while items are still in the
+ * file, it returns null and calls loaded once the next batch was read back.
+ *
+ * if the file cannot be written, spilling is disabled until the queue is drained. Items
+ * already written are still read back, new items stay in memory up to another memoryLimit
+ * and further items are dropped and reported by a single Status item. Items that cannot
+ * be read back are replaced by an IoError.
+ *
+ * thread safe
+ */
+final class SerialEventQueue {
+
+    enum Type {Connect, ConnectError, Read, IoError, Command, Status}
+
+    private static final Type[] TYPES = Type.values();
+    private static final int SPILL_BATCH = 64;     // items per write and read back per transfer
+
+    static final class Item {
+        final Type type;
+        final ChunkPool.Chunk chunk;
+        final Exception e;
+        final String text;
+
+        Item(Type type, ChunkPool.Chunk chunk, Exception e, String text) { this.type=type; this.chunk=chunk; this.e=e; this.text=text; }
+    }
+
+    private final File spillFile;
+    private final ChunkPool pool;
+    private final int memoryLimit;
+    private final Executor io;
+    private final Runnable loaded;
+    private final Runnable transfer = this::transfer;
+
+    // guarded by this, order is memory, spill file, overflow
+    private final ArrayDeque<Item> memory = new ArrayDeque<>();
+    private final ArrayDeque<Item> overflow = new ArrayDeque<>();
+    private int spilled;            // items in spill file not read yet
+    private int writing;            // items taken from overflow, not in spill file yet
+    private boolean spilling;       // new items go to overflow
+    private boolean spillFailed;    // spill file not written again until drained
+    private boolean transferPosted;
+    private boolean waiting;        // poll() returned null, call loaded after reading
+    private int dropped;
+    private int generation;         // incremented by clear()
+
+    // io executor only
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+
+    /**
+     * @param pool chunks for data read back from the spill file
+     * @param io runs the spill file transfers, one at a time
+     * @param loaded called on the io executor, when a poll() that returned null can continue
+     */
+    SerialEventQueue(File spillFile, ChunkPool pool, int memoryLimit, Executor io, Runnable loaded) {
+        this.spillFile = spillFile;
+        this.pool = pool;
+        this.memoryLimit = memoryLimit;
+        this.io = io;
+        this.loaded = loaded;
+    }
+
+    synchronized boolean isEmpty() {
+        return memory.isEmpty() && spilled + writing == 0 && overflow.isEmpty() && dropped == 0;
+    }
+
+    void add(Type type, String text) {
+        add(type, null, null, text);
+    }
+
+    void add(Type type, ChunkPool.Chunk chunk, Exception e) {
+        add(type, chunk, e, null);
+    }
+
+    private void add(Type type, ChunkPool.Chunk chunk, Exception e, String text) {
+        boolean post;
+        synchronized (this) {
+            if (!spilling && memory.size() >= memoryLimit)
+                spilling = true;
+            if (!spilling) {
+                memory.add(new Item(type, chunk, e, text));
+                return;
+            }
+            if (spillFailed && overflow.size() >= memoryLimit) {
+                if (chunk != null)
+                    chunk.release();
+                dropped++;
+                return;
+            }
+            if (dropped > 0)
+                overflow.add(dropped());
+            overflow.add(new Item(type, chunk, e, text));
+            post = !spillFailed && overflow.size() >= SPILL_BATCH && requestTransfer();
+        }
+        if (post)
+            io.execute(transfer);
+    }
+
+    /**
+     * @return oldest item or null if empty or the next items are not read back from the
+     * spill file yet. Spilled data may come back split into several chunks
+     */
+    Item poll() {
+        Item item;
+        boolean post;
+        synchronized (this) {
+            item = memory.poll();
+            if (item != null) {
+                post = spilled > 0 && memory.size() < memoryLimit / 2 && requestTransfer(); // read ahead
+            } else if (spilled + writing > 0) {
+                waiting = true;
+                post = requestTransfer();
+            } else {
+                post = false;
+                memory.addAll(overflow); // spill file drained
+                overflow.clear();
+                spilling = false;
+                spillFailed = false;
+                item = memory.poll();
+                if (item == null && dropped > 0)
+                    item = dropped();
+            }
+        }
+        if (post)
+            io.execute(transfer);
+        return item;
+    }
+
+    /**
+     * spill file is deleted on the io executor
+     */
+    void clear() {
+        synchronized (this) {
+            release(memory);
+            release(overflow);
+            spilled = 0;
+            spilling = false;
+            spillFailed = false;
+            waiting = false;
+            dropped = 0;
+            generation++;
+        }
+        io.execute(this::closeSpill);
+    }
+
+    private boolean requestTransfer() {
+        if (transferPosted)
+            return false;
+        transferPosted = true;
+        return true;
+    }
+
+    private Item dropped() {
+        Item item = new Item(Type.Status, null, null, dropped + " background events dropped, queue full");
+        dropped = 0;
+        return item;
+    }
+
+    private static void release(Collection<Item> items) {
+        for (Item item : items)
+            if (item.chunk != null)
+                item.chunk.release();
+        items.clear();
+    }
+
+    /**
+     * write the overflow to the spill file and read the next batch back into memory
+     */
+    private void transfer() {
+        int gen;
+        ArrayList<Item> batch = null;
+        synchronized (this) {
+            transferPosted = false;
+            gen = generation;
+            if (!spillFailed && !overflow.isEmpty()) {
+                batch = new ArrayList<>(overflow);
+                overflow.clear();
+                writing = batch.size();
+            }
+        }
+        if (batch != null) {
+            IOException error = null;
+            try {
+                spill(batch);
+            } catch (IOException e) {
+                error = e;
+                closeOut();
+            }
+            synchronized (this) {
+                writing = 0;
+                if (gen != generation) {
+                    release(batch);
+                } else if (error == null) {
+                    spilled += batch.size();
+                    release(batch);
+                } else {
+                    spillFailed = true; // keep the batch in memory, in front of newer items
+                    for (int i = batch.size() - 1; i >= 0; i--)
+                        overflow.addFirst(batch.get(i));
+                }
+            }
+        }
+        int count;
+        boolean notify;
+        synchronized (this) {
+            if (gen != generation)
+                return;
+            count = waiting || memory.size() < memoryLimit / 2 ? Math.min(spilled, SPILL_BATCH) : 0;
+            notify = waiting;
+            if (count == 0)
+                waiting = false; // nothing to read after a failed write, overflow is next
+        }
+        if (count == 0) {
+            if (notify)
+                loaded.run();
+            return;
+        }
+        ArrayList<Item> items = new ArrayList<>();
+        IOException error = null;
+        try {
+            for (int i = 0; i < count; i++)
+                unspill(items);
+        } catch (IOException e) {
+            error = e;
+        }
+        boolean drained;
+        synchronized (this) {
+            if (gen != generation) {
+                release(items);
+                return;
+            }
+            memory.addAll(items);
+            if (error != null) {
+                memory.add(lost(error));
+                spilled = 0;
+            } else {
+                spilled -= count;
+            }
+            drained = spilled == 0;
+            notify = waiting;
+            waiting = false;
+        }
+        if (drained)
+            closeSpill(); // next spill starts a new file
+        if (notify)
+            loaded.run();
+    }
+
+    private void spill(ArrayList<Item> batch) throws IOException {
+        if (spillOut == null)
+            spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        for (Item item : batch) {
+            spillOut.writeByte(item.type.ordinal());
+            if (item.chunk != null) {
+                spillOut.writeInt(item.chunk.length);
+                spillOut.write(item.chunk.data, 0, item.chunk.length);
+            } else if (item.e != null) {
+                spillOut.writeUTF(String.valueOf(item.e.getMessage()));
+            } else if (item.text != null) {
+                spillOut.writeUTF(item.text);
+            }
+        }
+        spillOut.flush(); // reader must see all counted items
+    }
+
+    /**
+     * read the oldest spilled item
+     */
+    private void unspill(ArrayList<Item> items) throws IOException {
+        if (spillIn == null)
+            spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+        Type type = TYPES[spillIn.readByte()];
+        switch (type) {
+            case Read:
+                int length = spillIn.readInt();
+                while (length > 0) {
+                    ChunkPool.Chunk chunk = pool.obtain();
+                    chunk.length = Math.min(length, chunk.data.length);
+                    try {
+                        spillIn.readFully(chunk.data, 0, chunk.length);
+                    } catch (IOException e) {
+                        chunk.release();
+                        throw e;
+                    }
+                    length -= chunk.length;
+                    items.add(new Item(type, chunk, null, null));
+                }
+                break;
+            case ConnectError:
+            case IoError:
+                items.add(new Item(type, null, new IOException(spillIn.readUTF()), null));
+                break;
+            case Command:
+            case Status:
+                items.add(new Item(type, null, null, spillIn.readUTF()));
+                break;
+            default:
+                items.add(new Item(type, null, null, null));
+        }
+    }
+
+    private static Item lost(IOException e) {
+        return new Item(Type.IoError, null, new IOException("background queue lost: " + e.getMessage()), null);
+    }
+
+    private void closeOut() {
+        try {
+            if (spillOut != null)
+                spillOut.close();
+        } catch (IOException ignored) {
+        }
+        spillOut = null;
+    }
+
+    private void closeSpill() {
+        try {
+            if (spillIn != null)
+                spillIn.close();
+        } catch (IOException ignored) {
+        }
+        spillIn = null;
+        closeOut();
+        //noinspection ResultOfMethodCallIgnored
+        spillFile.delete();
+    }
+
+}
@@ -3,6 +3,6 @@ package org.zurbagan.pds_spectrum;
 interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);
+    void onSerialRead         (ChunkPool.Chunk chunk); // release chunk when done
     void onSerialIoError      (Exception e);
 }
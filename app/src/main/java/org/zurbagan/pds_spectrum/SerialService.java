@@ -5,48 +5,64 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * use listener chain: Transport (SerialSocket, TcpTransport, ..) -> SerialService -> UI fragment
+ * spectrum decoding and storage run in a worker thread, the UI only gets lightweight events
  */
-public class SerialService extends Service implements SerialListener {
+public class SerialService extends Service implements SerialListener, SpectrumSession.Listener {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
     }
 
-    private enum QueueType {Connect, ConnectError, Read, IoError}
-
-    private static class QueueItem {
-        QueueType type;
-        byte[] data;
-        Exception e;
-
-        QueueItem(QueueType type, byte[] data, Exception e) { this.type=type; this.data=data; this.e=e; }
-    }
+    private static final int QUEUE_MEMORY_LIMIT = 256;  // items kept in memory while detached, more are spilled to file
+    private static final int REPLAY_SLICE = 32;         // items replayed per main looper message after attach
+    private static final int MSG_READ = 1;
 
     private final Handler mainLooper;
     private final IBinder binder;
-    private final Queue<QueueItem> queue1, queue2;
+    private final ChunkPool spillPool;
+    private SerialEventQueue queue1, queue2;
+    private final Runnable deliverReads = this::deliverReads;
+    private final Runnable replay = this::replay;
+    private ArrayDeque<ChunkPool.Chunk> pendingReads, deliveredReads;
+    private boolean readsPosted;
+    private long readsPostedNanos;
+    private boolean replaying;
+
+    private final LinkMetrics metrics = new LinkMetrics();
+    private File directory;
+    private HandlerThread workerThread;
+    private Handler worker;
+    private SpectrumSession session;
 
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
+    private final BroadcastReceiver disconnectBroadcastReceiver;
+    private volatile Transport transport;
+    private SpectrumListener listener;
+    private volatile boolean connected;
 
     /**
      * Lifecylce
@@ -54,14 +70,61 @@ public class SerialService extends Service implements SerialListener {
     public SerialService() {
         mainLooper = new Handler(Looper.getMainLooper());
         binder = new SerialBinder();
-        queue1 = new LinkedList<>();
-        queue2 = new LinkedList<>();
+        spillPool = new ChunkPool(1024, 8);
+        pendingReads = new ArrayDeque<>();
+        deliveredReads = new ArrayDeque<>();
+        disconnectBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // delivered without the connected check, disconnect() clears it before the worker runs
+                IOException e = new IOException("background disconnect");
+                worker.post(() -> {
+                    session.reset();
+                    deliverIoError(e);
+                });
+                disconnect(); // disconnect now, else would be queued until UI re-attached
+            }
+        };
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        directory = new File(Environment.getExternalStorageDirectory(), "Download/pds");
+        workerThread = new HandlerThread("spectrum");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper(), msg -> {
+            if (msg.what == MSG_READ)
+                session.receive((ChunkPool.Chunk) msg.obj);
+            return true;
+        });
+        // spill files are written and read on the worker, replay continues when the next items are loaded
+        queue1 = new SerialEventQueue(new File(getCacheDir(), "serial_queue1.bin"), spillPool, QUEUE_MEMORY_LIMIT, worker::post, () -> mainLooper.post(replay));
+        queue2 = new SerialEventQueue(new File(getCacheDir(), "serial_queue2.bin"), spillPool, QUEUE_MEMORY_LIMIT, worker::post, () -> mainLooper.post(replay));
+        CommandScheduler.Timer timer = new CommandScheduler.Timer() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                worker.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                worker.removeCallbacks(task);
+            }
+        };
+        session = new SpectrumSession(this::write, this, metrics, timer, directory, new File(getFilesDir(), "archive"));
+        File calibrations = new File(getFilesDir(), "calibrations.txt");
+        worker.post(() -> session.loadCalibrations(calibrations));
     }
 
     @Override
     public void onDestroy() {
         cancelNotification();
         disconnect();
+        queue1.clear();
+        queue2.clear();
+        worker.post(session::close);
+        workerThread.quitSafely();
         super.onDestroy();
     }
 
@@ -74,54 +137,124 @@ public class SerialService extends Service implements SerialListener {
     /**
      * Api
      */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
+    public void connect(Transport transport) throws IOException {
+        transport.connect(this);
+        this.transport = transport;
         connected = true;
+        registerReceiver(disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT));
     }
 
     public void disconnect() {
         connected = false; // ignore data,errors while disconnecting
         cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
+        if(transport != null) {
+            transport.disconnect();
+            transport = null;
+            try {
+                unregisterReceiver(disconnectBroadcastReceiver);
+            } catch (Exception ignored) {
+            }
         }
+        worker.post(session::reset);
     }
 
     public void write(byte[] data) throws IOException {
-        if(!connected)
+        Transport transport = this.transport;
+        if(!connected || transport == null)
             throw new IOException("not connected");
-        socket.write(data);
+        transport.write(data);
+    }
+
+    /**
+     * request last spectrum first, then previous ones
+     */
+    public void requestSpectrum() {
+        worker.post(session::requestSpectrum);
+    }
+
+    public void startBulkDownload() {
+        worker.post(session::startBulkDownload);
+    }
+
+    public void stopBulkDownload() {
+        worker.post(session::stopBulkDownload);
+    }
+
+    /**
+     * @param energies keV of reference peaks in the last spectrum, none to reset
+     */
+    public void calibrate(float[] energies) {
+        worker.post(() -> session.calibrate(energies));
+    }
+
+    public boolean isBulkDownload() {
+        return session.isBulkDownload();
+    }
+
+    public Spectrum getLastSpectrum() {
+        return session.getLastSpectrum();
+    }
+
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return file with the current metrics report
+     */
+    public File dumpMetrics() throws IOException {
+        String time = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "link_metrics_" + time + ".txt");
+        metrics.dump(file);
+        return file;
     }
 
-    public void attach(SerialListener listener) {
+    public void attach(SpectrumListener listener) {
         if(Looper.getMainLooper().getThread() != Thread.currentThread())
             throw new IllegalArgumentException("not in main thread");
         cancelNotification();
         // use synchronized() to prevent new items in queue2
         // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        // while replaying, new items still go to queue2 to keep the order
         synchronized (this) {
             this.listener = listener;
+            replaying = true;
         }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.data); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+        mainLooper.removeCallbacks(replay);
+        replay();
+    }
+
+    /**
+     * replay queued items in slices, so a long background queue does not block the main thread
+     */
+    private void replay() {
+        for(int i = 0; i < REPLAY_SLICE; i++) {
+            SerialEventQueue.Item item;
+            synchronized (this) {
+                if(listener == null)
+                    return; // detached again, continue with next attach
+                item = queue1.poll();
+                if(item == null && !queue1.isEmpty())
+                    return; // spilled items are being loaded, replay is posted again then
+                if(item == null)
+                    item = queue2.poll();
+                if(item == null && !queue2.isEmpty())
+                    return;
+                if(item == null) {
+                    replaying = false;
+                    return;
+                }
             }
-        }
-        for(QueueItem item : queue2) {
             switch(item.type) {
                 case Connect:       listener.onSerialConnect      (); break;
                 case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.data); break;
+                case Read:          listener.onSerialRead         (item.chunk); break;
                 case IoError:       listener.onSerialIoError      (item.e); break;
+                case Command:       listener.onSpectrumCommand    (item.text); break;
+                case Status:        listener.onSpectrumStatus     (item.text); break;
             }
         }
-        queue1.clear();
-        queue2.clear();
+        mainLooper.post(replay);
     }
 
     public void detach() {
@@ -152,7 +285,7 @@ public class SerialService extends Service implements SerialListener {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setColor(getResources().getColor(R.color.colorPrimary))
                 .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentText(transport != null ? "Connected to "+transport.getName() : "Background Service")
                 .setContentIntent(restartPendingIntent)
                 .setOngoing(true)
                 .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -167,41 +300,139 @@ public class SerialService extends Service implements SerialListener {
     }
 
     /**
-     * SerialListener
+     * SerialListener, called from transport thread
+     * everything passes the worker thread to keep the order of reads and errors
      */
     public void onSerialConnect() {
+        worker.post(this::dispatchConnect);
+    }
+
+    public void onSerialConnectError(Exception e) {
+        worker.post(() -> {
+            session.reset();
+            dispatchConnectError(e);
+        });
+    }
+
+    public void onSerialRead(ChunkPool.Chunk chunk) {
+        metrics.onRead(chunk.length);
+        if(connected)
+            worker.obtainMessage(MSG_READ, chunk).sendToTarget();
+        else
+            chunk.release();
+    }
+
+    public void onSerialIoError(Exception e) {
+        worker.post(() -> {
+            session.reset();
+            dispatchIoError(e);
+        });
+    }
+
+    /**
+     * SpectrumSession.Listener, called from worker thread
+     */
+    public void onSessionCommand(String msg) {
+        dispatchText(SerialEventQueue.Type.Command, msg);
+    }
+
+    public void onSessionStatus(String msg) {
+        dispatchText(SerialEventQueue.Type.Status, msg);
+    }
+
+    public void onSessionProgress(int binsReceived, int bins, int bytesPerSecond) {
+        synchronized (this) {
+            if (listener != null && !replaying) { // progress is not queued while detached
+                long posted = System.nanoTime();
+                mainLooper.post(() -> {
+                    metrics.onDispatch(posted);
+                    if (listener != null)
+                        listener.onSpectrumProgress(binsReceived, bins, bytesPerSecond);
+                });
+            }
+        }
+    }
+
+    public void onSessionSpectrum(Spectrum spectrum) {
+        synchronized (this) {
+            if (listener != null && !replaying) { // not queued, getLastSpectrum() after attach
+                long posted = System.nanoTime();
+                mainLooper.post(() -> {
+                    metrics.onDispatch(posted);
+                    if (listener != null)
+                        listener.onSpectrumReceived(spectrum);
+                });
+            }
+        }
+    }
+
+    public void onSessionBulkDownload(boolean running) {
+        synchronized (this) {
+            if (listener != null && !replaying) { // not queued, isBulkDownload() after attach
+                mainLooper.post(() -> {
+                    if (listener != null)
+                        listener.onBulkDownload(running);
+                });
+            }
+        }
+    }
+
+    /**
+     * dispatch to UI in main thread or queue while detached
+     */
+    private void dispatchText(SerialEventQueue.Type type, String msg) {
+        synchronized (this) {
+            if (listener != null && !replaying) {
+                long posted = System.nanoTime();
+                mainLooper.post(() -> {
+                    metrics.onDispatch(posted);
+                    if (listener == null) {
+                        queue1.add(type, msg);
+                    } else if (type == SerialEventQueue.Type.Command) {
+                        listener.onSpectrumCommand(msg);
+                    } else {
+                        listener.onSpectrumStatus(msg);
+                    }
+                });
+            } else {
+                queue2.add(type, msg);
+            }
+        }
+    }
+
+    private void dispatchConnect() {
         if(connected) {
             synchronized (this) {
-                if (listener != null) {
+                if (listener != null && !replaying) {
                     mainLooper.post(() -> {
                         if (listener != null) {
                             listener.onSerialConnect();
                         } else {
-                            queue1.add(new QueueItem(QueueType.Connect, null, null));
+                            queue1.add(SerialEventQueue.Type.Connect, null, null);
                         }
                     });
                 } else {
-                    queue2.add(new QueueItem(QueueType.Connect, null, null));
+                    queue2.add(SerialEventQueue.Type.Connect, null, null);
                 }
             }
         }
     }
 
-    public void onSerialConnectError(Exception e) {
+    private void dispatchConnectError(Exception e) {
         if(connected) {
             synchronized (this) {
-                if (listener != null) {
+                if (listener != null && !replaying) {
                     mainLooper.post(() -> {
                         if (listener != null) {
                             listener.onSerialConnectError(e);
                         } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, null, e));
+                            queue1.add(SerialEventQueue.Type.ConnectError, null, e);
                             cancelNotification();
                             disconnect();
                         }
                     });
                 } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, null, e));
+                    queue2.add(SerialEventQueue.Type.ConnectError, null, e);
                     cancelNotification();
                     disconnect();
                 }
@@ -209,42 +440,82 @@ public class SerialService extends Service implements SerialListener {
         }
     }
 
-    public void onSerialRead(byte[] data) {
+    /**
+     * data not belonging to a reply is shown in the terminal
+     */
+    public void onSessionData(ChunkPool.Chunk chunk) {
         if(connected) {
             synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialRead(data);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Read, data, null));
-                        }
-                    });
+                if (listener != null && !replaying) {
+                    // coalesce reads arriving while a delivery is pending, main thread wakes once per batch
+                    ChunkPool.Chunk last = pendingReads.peekLast();
+                    if (last != null && last.length + chunk.length <= last.data.length) {
+                        System.arraycopy(chunk.data, 0, last.data, last.length, chunk.length);
+                        last.length += chunk.length;
+                        chunk.release();
+                    } else {
+                        pendingReads.add(chunk);
+                    }
+                    if (!readsPosted) {
+                        readsPosted = true;
+                        readsPostedNanos = System.nanoTime();
+                        mainLooper.post(deliverReads);
+                    }
                 } else {
-                    queue2.add(new QueueItem(QueueType.Read, data, null));
+                    queue2.add(SerialEventQueue.Type.Read, chunk, null);
                 }
             }
+        } else {
+            chunk.release();
         }
     }
 
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, null, e));
-                            cancelNotification();
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, null, e));
-                    cancelNotification();
-                    disconnect();
-                }
+    /**
+     * runs in main thread, delivers all reads collected since the last delivery
+     */
+    private void deliverReads() {
+        ArrayDeque<ChunkPool.Chunk> reads;
+        synchronized (this) {
+            reads = pendingReads;
+            pendingReads = deliveredReads;
+            deliveredReads = reads;
+            readsPosted = false;
+            metrics.onDispatch(readsPostedNanos);
+        }
+        ChunkPool.Chunk chunk;
+        while ((chunk = reads.poll()) != null) {
+            if (listener != null) {
+                listener.onSerialRead(chunk);
+            } else {
+                queue1.add(SerialEventQueue.Type.Read, chunk, null);
+            }
+        }
+    }
+
+    private void dispatchIoError(Exception e) {
+        if(connected)
+            deliverIoError(e);
+    }
+
+    /**
+     * also used after disconnect(), when errors of the closing transport are ignored
+     */
+    private void deliverIoError(Exception e) {
+        synchronized (this) {
+            if (listener != null && !replaying) {
+                mainLooper.post(() -> {
+                    if (listener != null) {
+                        listener.onSerialIoError(e);
+                    } else {
+                        queue1.add(SerialEventQueue.Type.IoError, null, e);
+                        cancelNotification();
+                        disconnect();
+                    }
+                });
+            } else {
+                queue2.add(SerialEventQueue.Type.IoError, null, e);
+                cancelNotification();
+                disconnect();
             }
         }
     }
@@ -3,24 +3,22 @@ package org.zurbagan.pds_spectrum;
 import android.app.Activity;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 
-class SerialSocket implements Runnable {
+/**
+ * Bluetooth SPP transport, blocking reads in its own thread
+ */
+class SerialSocket implements Transport, Runnable {
 
     private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
-    private final BroadcastReceiver disconnectBroadcastReceiver;
+    private final ChunkPool pool = new ChunkPool(1024, 64);
 
-    private final Context context;
     private SerialListener listener;
     private final BluetoothDevice device;
     private BluetoothSocket socket;
@@ -29,32 +27,25 @@ class SerialSocket implements Runnable {
     SerialSocket(Context context, BluetoothDevice device) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
-        this.context = context;
         this.device = device;
-        disconnectBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if(listener != null)
-                    listener.onSerialIoError(new IOException("background disconnect"));
-                disconnect(); // disconnect now, else would be queued until UI re-attached
-            }
-        };
     }
 
-    String getName() {
+    @Override
+    public String getName() {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
 
     /**
      * connect-success and most connect-errors are returned asynchronously to listener
      */
-    void connect(SerialListener listener) throws IOException {
+    @Override
+    public void connect(SerialListener listener) throws IOException {
         this.listener = listener;
-        context.registerReceiver(disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT));
         Executors.newSingleThreadExecutor().submit(this);
     }
 
-    void disconnect() {
+    @Override
+    public void disconnect() {
         listener = null; // ignore remaining data and errors
         // connected = false; // run loop will reset connected
         if(socket != null) {
@@ -64,13 +55,10 @@ class SerialSocket implements Runnable {
             }
             socket = null;
         }
-        try {
-            context.unregisterReceiver(disconnectBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
     }
 
-    void write(byte[] data) throws IOException {
+    @Override
+    public void write(byte[] data) throws IOException {
         if (!connected)
             throw new IOException("not connected");
         socket.getOutputStream().write(data);
@@ -96,14 +84,16 @@ class SerialSocket implements Runnable {
         }
         connected = true;
         try {
-            byte[] buffer = new byte[1024];
-            int len;
             //noinspection InfiniteLoopStatement
             while (true) {
-                len = socket.getInputStream().read(buffer);
-                byte[] data = Arrays.copyOf(buffer, len);
+                ChunkPool.Chunk chunk = pool.obtain();
+                chunk.length = socket.getInputStream().read(chunk.data);
+                if(chunk.length < 0)
+                    throw new IOException("end of stream");
                 if(listener != null)
-                    listener.onSerialRead(data);
+                    listener.onSerialRead(chunk);
+                else
+                    chunk.release();
             }
         } catch (Exception e) {
             connected = false;
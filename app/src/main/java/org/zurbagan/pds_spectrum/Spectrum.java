@@ -0,0 +1,35 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Locale;
+
+/**
+ * spectrum read from PDS-100G memory (R22 reply)
+ */
+final class Spectrum {
+
+    String   serial = "";       // PDS-100G serial number
+    float    gain = 1f;         // gain
+    int      offset;            // offset (bin)
+    int      temperature;       // temperature °C
+    int      acqTime;           // acquisition time (max 999 seconds)
+    float    doseRate;          // dose rate in uSv/s
+    float    neutronRate;       // neutron rate
+    int      date;              // date of spectrum acquisition (20yymmdd)
+    int      time;              // time of spectrum acquisition (hhmmss)
+    int      bins;              // number of bins (512 or 1024)
+    int      number = -1;       // spectrum number (from last to first in memory) [n..1]
+    int[]    values;            // counts per bin, valid after reply is complete
+    int      totalCounts;
+    PeakFinder.Peaks peaks;     // found after reply is complete, null if not searched
+    PeakFitter.Fits fits;       // net area and FWHM per peak, null if not fitted
+    NuclideLibrary.Matches nuclides; // identified from peaks, null if not searched
+
+    String dateString() {
+        return String.format(Locale.US, "%08d", date);
+    }
+
+    String timeString() {
+        return String.format(Locale.US, "%06d", time);
+    }
+
+}
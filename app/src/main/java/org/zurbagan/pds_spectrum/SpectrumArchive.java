@@ -0,0 +1,365 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * append-only binary spectrum archive
+ *
+ * spectra.dat: records of a fixed header followed by the raw bins as 16 bit values
+ * spectra.idx: one fixed size entry per record, keyed by serial, date/time and spectrum number
+ *
+ * identified nuclides are kept as NuclideLibrary bit mask in record header and index entry,
+ * records written before identification existed have 0 there
+ *
+ * the index is kept in memory as primitive columns, so queries by date range or dose rate
+ * never touch the bin data. Bins are read through a memory mapping of the data file.
+ * Data is appended before its index entry, a torn write leaves only unreferenced data.
+ * Index entries beyond the end of the data file, e.g. data not written back before a
+ * power loss, are dropped on open.
+ *
+ * not thread safe
+ */
+final class SpectrumArchive implements Closeable {
+
+    private static final int MAGIC = 0x50445331;    // "PDS1"
+    static final int RECORD_HEADER_LENGTH = 64;
+    static final int INDEX_ENTRY_LENGTH = 48;
+
+    private final RandomAccessFile dataFile, indexFile;
+    private final FileChannel data, index;
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer bins = ByteBuffer.allocate(2 * SpectrumDecoder.MAX_BINS).order(ByteOrder.BIG_ENDIAN);
+    private MappedByteBuffer mapped;
+
+    // index columns
+    private int size;
+    private long[] serial = new long[64];   // 8 ASCII bytes
+    private int[] date = new int[64];
+    private int[] time = new int[64];
+    private int[] number = new int[64];
+    private int[] binCount = new int[64];
+    private float[] doseRate = new float[64];
+    private int[] totalCounts = new int[64];
+    private long[] offset = new long[64];
+    private long[] nuclides = new long[64];
+    private int[] lookup = new int[128];    // open addressing: entry + 1, 0 = empty
+
+    SpectrumArchive(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+        dataFile = new RandomAccessFile(new File(directory, "spectra.dat"), "rw");
+        indexFile = new RandomAccessFile(new File(directory, "spectra.idx"), "rw");
+        data = dataFile.getChannel();
+        index = indexFile.getChannel();
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        int entries = (int) (index.size() / INDEX_ENTRY_LENGTH); // ignore torn last entry
+        if (entries > 0) {
+            MappedByteBuffer buf = index.map(FileChannel.MapMode.READ_ONLY, 0, (long) entries * INDEX_ENTRY_LENGTH);
+            buf.order(ByteOrder.BIG_ENDIAN);
+            long dataSize = data.size();
+            while (entries > 0 && recordEnd(buf, (entries - 1) * INDEX_ENTRY_LENGTH) > dataSize)
+                entries--; // index entry written, but its data was lost
+            for (int i = 0; i < entries; i++)
+                addEntry(buf, i * INDEX_ENTRY_LENGTH);
+        }
+        index.truncate((long) entries * INDEX_ENTRY_LENGTH);
+        long end = size > 0 ? offset[size - 1] + RECORD_HEADER_LENGTH + 2L * binCount[size - 1] : 0;
+        if (data.size() > end)
+            data.truncate(end); // data without index entry
+    }
+
+    private static long recordEnd(ByteBuffer buf, int pos) {
+        return buf.getLong(pos + 32) + RECORD_HEADER_LENGTH + 2L * buf.getInt(pos + 20);
+    }
+
+    private void addEntry(ByteBuffer buf, int pos) {
+        if (size == date.length) {
+            int capacity = size * 2;
+            serial = Arrays.copyOf(serial, capacity);
+            date = Arrays.copyOf(date, capacity);
+            time = Arrays.copyOf(time, capacity);
+            number = Arrays.copyOf(number, capacity);
+            binCount = Arrays.copyOf(binCount, capacity);
+            doseRate = Arrays.copyOf(doseRate, capacity);
+            totalCounts = Arrays.copyOf(totalCounts, capacity);
+            offset = Arrays.copyOf(offset, capacity);
+            nuclides = Arrays.copyOf(nuclides, capacity);
+        }
+        serial[size] = buf.getLong(pos);
+        date[size] = buf.getInt(pos + 8);
+        time[size] = buf.getInt(pos + 12);
+        number[size] = buf.getInt(pos + 16);
+        binCount[size] = buf.getInt(pos + 20);
+        doseRate[size] = buf.getFloat(pos + 24);
+        totalCounts[size] = buf.getInt(pos + 28);
+        offset[size] = buf.getLong(pos + 32);
+        nuclides[size] = buf.getLong(pos + 40);
+        if (2 * (size + 1) > lookup.length) {
+            lookup = new int[lookup.length * 2];
+            for (int i = 0; i < size; i++)
+                insertLookup(i);
+        }
+        insertLookup(size);
+        size++;
+    }
+
+    private static int hash(long serial, int date, int time, int number) {
+        long h = serial * 0x9E3779B97F4A7C15L + date;
+        h = h * 0x9E3779B97F4A7C15L + time;
+        h = h * 0x9E3779B97F4A7C15L + number;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private void insertLookup(int i) {
+        int mask = lookup.length - 1;
+        int slot = hash(serial[i], date[i], time[i], number[i]) & mask;
+        while (lookup[slot] != 0)
+            slot = (slot + 1) & mask;
+        lookup[slot] = i + 1;
+    }
+
+    /**
+     * @return entry of spectrum with this serial, date/time and number, or -1
+     */
+    int find(String serial, int date, int time, int number) {
+        long key = packSerial(serial);
+        int mask = lookup.length - 1;
+        int slot = hash(key, date, time, number) & mask;
+        int i;
+        while ((i = lookup[slot] - 1) >= 0) {
+            if (this.serial[i] == key && this.date[i] == date && this.time[i] == time && this.number[i] == number)
+                return i;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * all older spectra of a device memory are archived: #1 to number - 1 of this serial,
+     * acquired not later than date/time. A memory cleared and filled again up to the same
+     * numbers before the archived ones were taken is not told apart.
+     */
+    boolean containsOlder(String serial, int number, int date, int time) {
+        long key = packSerial(serial);
+        long t = date * 1000000L + time;
+        boolean[] seen = new boolean[Math.max(number, 1)];
+        int missing = number - 1;
+        for (int i = 0; i < size && missing > 0; i++) {
+            int n = this.number[i];
+            if (this.serial[i] == key && n >= 1 && n < number && !seen[n] &&
+                    this.date[i] * 1000000L + this.time[i] <= t) {
+                seen[n] = true;
+                missing--;
+            }
+        }
+        return missing <= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return index of the new entry
+     */
+    int append(Spectrum spectrum) throws IOException {
+        long pos = data.size();
+        header.clear();
+        header.putInt(MAGIC);
+        header.putLong(packSerial(spectrum.serial));
+        header.putInt(spectrum.date);
+        header.putInt(spectrum.time);
+        header.putInt(spectrum.number);
+        header.putInt(spectrum.bins);
+        header.putFloat(spectrum.gain);
+        header.putInt(spectrum.offset);
+        header.putInt(spectrum.temperature);
+        header.putInt(spectrum.acqTime);
+        header.putFloat(spectrum.doseRate);
+        header.putFloat(spectrum.neutronRate);
+        header.putInt(spectrum.totalCounts);
+        header.putLong(nuclideMask(spectrum));
+        header.position(RECORD_HEADER_LENGTH);
+        header.flip();
+        bins.clear();
+        for (int i = 0; i < spectrum.bins; i++)
+            bins.putShort((short) spectrum.values[i]);
+        bins.flip();
+        writeFully(data, header, pos);
+        writeFully(data, bins, pos + RECORD_HEADER_LENGTH);
+
+        entry.clear();
+        entry.putLong(packSerial(spectrum.serial));
+        entry.putInt(spectrum.date);
+        entry.putInt(spectrum.time);
+        entry.putInt(spectrum.number);
+        entry.putInt(spectrum.bins);
+        entry.putFloat(spectrum.doseRate);
+        entry.putInt(spectrum.totalCounts);
+        entry.putLong(pos);
+        entry.putLong(nuclideMask(spectrum));
+        entry.position(INDEX_ENTRY_LENGTH);
+        entry.flip();
+        writeFully(index, entry, (long) size * INDEX_ENTRY_LENGTH);
+        addEntry(entry, 0);
+        return size - 1;
+    }
+
+    /**
+     * replace the identified nuclides of an entry, e.g. after a new calibration
+     */
+    void setNuclides(int i, long mask) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        buf.putLong(0, mask);
+        writeFully(data, buf, offset[i] + 56);
+        buf.clear();
+        writeFully(index, buf, (long) i * INDEX_ENTRY_LENGTH + 40);
+        nuclides[i] = mask;
+    }
+
+    private static long nuclideMask(Spectrum spectrum) {
+        return spectrum.nuclides != null ? spectrum.nuclides.mask : 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+    }
+
+    /**
+     * read complete spectrum including bins
+     */
+    Spectrum read(int i) throws IOException {
+        long pos = offset[i];
+        long end = pos + RECORD_HEADER_LENGTH + 2L * binCount[i];
+        if (mapped == null || mapped.capacity() < end) {
+            mapped = data.map(FileChannel.MapMode.READ_ONLY, 0, data.size());
+            mapped.order(ByteOrder.BIG_ENDIAN);
+        }
+        int p = (int) pos;
+        if (mapped.getInt(p) != MAGIC)
+            throw new IOException("archive record " + i + " corrupt");
+        Spectrum s = new Spectrum();
+        s.serial = unpackSerial(mapped.getLong(p + 4));
+        s.date = mapped.getInt(p + 12);
+        s.time = mapped.getInt(p + 16);
+        s.number = mapped.getInt(p + 20);
+        s.bins = mapped.getInt(p + 24);
+        s.gain = mapped.getFloat(p + 28);
+        s.offset = mapped.getInt(p + 32);
+        s.temperature = mapped.getInt(p + 36);
+        s.acqTime = mapped.getInt(p + 40);
+        s.doseRate = mapped.getFloat(p + 44);
+        s.neutronRate = mapped.getFloat(p + 48);
+        s.totalCounts = mapped.getInt(p + 52);
+        s.nuclides = NuclideLibrary.Matches.fromMask(mapped.getLong(p + 56));
+        s.values = new int[s.bins];
+        p += RECORD_HEADER_LENGTH;
+        for (int b = 0; b < s.bins; b++)
+            s.values[b] = mapped.getShort(p + 2 * b) & 0xffff;
+        return s;
+    }
+
+    /*
+     * index access, no bin data is read
+     */
+    String getSerial(int i)      { return unpackSerial(serial[i]); }
+    int getDate(int i)           { return date[i]; }
+    int getTime(int i)           { return time[i]; }
+    int getNumber(int i)         { return number[i]; }
+    int getBins(int i)           { return binCount[i]; }
+    float getDoseRate(int i)     { return doseRate[i]; }
+    int getTotalCounts(int i)    { return totalCounts[i]; }
+    long getNuclides(int i)      { return nuclides[i]; }
+
+    /**
+     * @return entries acquired within [from, to], timestamps as 20yymmdd * 1000000 + hhmmss
+     */
+    int[] findByTime(long from, long to) {
+        int[] found = new int[16];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            long t = date[i] * 1000000L + time[i];
+            if (t >= from && t <= to) {
+                if (n == found.length)
+                    found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @return entries with dose rate >= threshold in uSv/s
+     */
+    int[] findByDoseRate(float threshold) {
+        int[] found = new int[16];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (doseRate[i] >= threshold) {
+                if (n == found.length)
+                    found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @return entries where this NuclideLibrary nuclide was identified
+     */
+    int[] findByNuclide(int nuclide) {
+        int[] found = new int[16];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if ((nuclides[i] & 1L << nuclide) != 0) {
+                if (n == found.length)
+                    found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    static long packSerial(String s) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = v << 8 | (i < s.length() ? s.charAt(i) & 0xff : ' ');
+        return v;
+    }
+
+    static String unpackSerial(long v) {
+        char[] c = new char[8];
+        for (int i = 7; i >= 0; i--, v >>>= 8)
+            c[i] = (char) (v & 0xff);
+        return new String(c);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        try {
+            dataFile.close();
+        } finally {
+            indexFile.close();
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.IOException;
+
+/**
+ * incremental decoder for PDS-100G replies: R18 (serial number) and R22 (spectrum)
+ *
+ * every received byte is looked at exactly once, decoder state is kept between chunks,
+ * so no reply buffer has to be re-parsed when the next chunk arrives. No UI dependencies.
+ *
+ * R22 frame layout: STX "R22" header[51] bins[2*n big endian] trailer[3], trailer ends with ETX
+ *
+ * integrity: unknown tags and headers with non-digit fields are dropped, the decoder
+ * resyncs at the next STX, also within the already buffered header bytes. A reply not
+ * ending with ETX is reported as corrupt. The two trailer bytes before ETX are probably
+ * a checksum, but their algorithm is unknown, so they are not checked.
+ */
+final class SpectrumDecoder {
+
+    interface Listener {
+        void onSerialNumber     (String serial);
+        void onSpectrumHeader   (Spectrum spectrum);
+        void onSpectrumProgress (Spectrum spectrum, int binsReceived);
+        void onSpectrumComplete (Spectrum spectrum);
+        void onSpectrumSkipped  (Spectrum spectrum);
+        void onSpectrumCorrupt  (Spectrum spectrum, String reason); // bins received, framing wrong
+        void onDecodeError      (Exception e);  // garbage dropped, decoder continues with next STX
+    }
+
+    static final byte STX = 0x02;
+    static final byte ETX = 0x03;
+    static final int TAG_LENGTH = 4;        // STX + "R22"
+    static final int HEADER_LENGTH = 51;    // including tag
+    static final int TRAILER_LENGTH = 3;
+    static final int MAX_BINS = 9999;
+    private static final int R18_LENGTH = 30; // serial number at 22..30
+
+    private enum State { Idle, Tag, R18, Header, Bins, Trailer }
+
+    private final Listener listener;
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private final byte[] trailer = new byte[TRAILER_LENGTH];
+    private State state = State.Idle;
+    private int headerPos;
+    private int bin;
+    private int highByte;       // first byte of current bin, -1 if none
+    private int trailerPos;
+    private boolean skip;
+    private Spectrum spectrum;
+    private String serial;
+
+    SpectrumDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * a command was sent, the next STX starts its reply
+     */
+    void expectReply() {
+        state = State.Tag;
+        headerPos = 0;
+        spectrum = null;
+    }
+
+    void reset() {
+        state = State.Idle;
+        spectrum = null;
+    }
+
+    /**
+     * called from onSpectrumHeader: consume the bins of the current spectrum without
+     * decoding them, onSpectrumSkipped is called instead of onSpectrumComplete
+     */
+    void skip() {
+        skip = true;
+    }
+
+    /**
+     * reply wanted or in progress, received data belongs to the decoder
+     */
+    boolean isActive() {
+        return state != State.Idle;
+    }
+
+    /**
+     * @return number of bytes consumed. Bytes following a complete reply are not consumed
+     */
+    int decode(final byte[] data, final int off, final int len) {
+        int pos = off;
+        final int end = off + len;
+        while (pos < end && state != State.Idle) {
+            switch (state) {
+                case Tag:
+                    pos = decodeTag(data, pos, end);
+                    break;
+                case R18:
+                case Header:
+                    pos = decodeHeader(data, pos, end);
+                    break;
+                case Bins:
+                    pos = decodeBins(data, pos, end);
+                    if (state == State.Bins)
+                        listener.onSpectrumProgress(spectrum, bin);
+                    break;
+                case Trailer:
+                    pos = decodeTrailer(data, pos, end);
+                    break;
+            }
+        }
+        return pos - off;
+    }
+
+    private int decodeTag(final byte[] data, int pos, final int end) {
+        while (true) {
+            while (pos < end && headerPos < TAG_LENGTH) {
+                byte b = data[pos++];
+                if (headerPos == 0 && b != STX)
+                    continue; // wait for start of reply
+                header[headerPos++] = b;
+            }
+            if (headerPos < TAG_LENGTH)
+                return pos;
+            if (header[1] == 'R' && header[2] == '1' && header[3] == '8') {
+                state = State.R18;
+                return pos;
+            } else if (header[1] == 'R' && header[2] == '2' && header[3] == '2') {
+                state = State.Header;
+                return pos;
+            }
+            resync(); // not a known reply
+        }
+    }
+
+    /**
+     * drop buffered header bytes up to the next STX, keep the rest as start of a reply
+     */
+    private void resync() {
+        int i = 1;
+        while (i < headerPos && header[i] != STX)
+            i++;
+        System.arraycopy(header, i, header, 0, headerPos - i);
+        headerPos -= i;
+        state = State.Tag;
+    }
+
+    private int decodeHeader(final byte[] data, final int pos, final int end) {
+        int length = state == State.R18 ? R18_LENGTH : HEADER_LENGTH;
+        if (headerPos > length)
+            headerPos = length; // R18 found after resync in a longer buffer, rest is lost
+        int n = Math.min(end - pos, length - headerPos);
+        System.arraycopy(data, pos, header, headerPos, n);
+        headerPos += n;
+        if (headerPos == length) {
+            try {
+                if (state == State.R18) {
+                    state = State.Idle;
+                    listener.onSerialNumber(new String(header, 22, 8, "ISO-8859-1"));
+                } else {
+                    spectrum = parseHeader();
+                    spectrum.values = new int[spectrum.bins];
+                    bin = 0;
+                    highByte = -1;
+                    trailerPos = 0;
+                    skip = false;
+                    state = State.Bins;
+                    listener.onSpectrumHeader(spectrum);
+                }
+            } catch (Exception e) {
+                spectrum = null;
+                resync();
+                listener.onDecodeError(e);
+            }
+        }
+        return pos + n;
+    }
+
+    private int decodeBins(final byte[] data, int pos, final int end) {
+        if (skip) {
+            int done = 2 * bin + (highByte >= 0 ? 1 : 0);
+            int n = Math.min(end - pos, 2 * spectrum.bins - done);
+            pos += n;
+            done += n;
+            bin = done / 2;
+            highByte = done % 2 == 1 ? 0 : -1;
+            if (bin == spectrum.bins)
+                state = State.Trailer;
+            return pos;
+        }
+        final int[] values = spectrum.values;
+        final int bins = spectrum.bins;
+        if (highByte >= 0 && pos < end) {
+            values[bin++] = highByte << 8 | (data[pos++] & 0xff);
+            highByte = -1;
+        }
+        while (bin < bins && pos + 1 < end) {
+            values[bin++] = (data[pos] & 0xff) << 8 | (data[pos + 1] & 0xff);
+            pos += 2;
+        }
+        if (bin < bins && pos < end)
+            highByte = data[pos++] & 0xff;
+        if (bin == bins)
+            state = State.Trailer;
+        return pos;
+    }
+
+    private int decodeTrailer(final byte[] data, int pos, final int end) {
+        int n = Math.min(end - pos, TRAILER_LENGTH - trailerPos);
+        System.arraycopy(data, pos, trailer, trailerPos, n);
+        trailerPos += n;
+        pos += n;
+        if (trailerPos == TRAILER_LENGTH && trailer[TRAILER_LENGTH - 1] != ETX) {
+            Spectrum s = spectrum;
+            expectReply(); // lost or extra bytes, wait for the next reply
+            listener.onSpectrumCorrupt(s, String.format("no ETX at end of reply but 0x%02x",
+                    trailer[TRAILER_LENGTH - 1] & 0xff));
+        } else if (trailerPos == TRAILER_LENGTH && skip) {
+            Spectrum s = spectrum;
+            reset();
+            listener.onSpectrumSkipped(s);
+        } else if (trailerPos == TRAILER_LENGTH) {
+            Spectrum s = spectrum;
+            s.values[s.bins - 1] = 0; // ?? garbage in last bin
+            int total = 0;
+            for (int i = 0; i < s.bins; i++)
+                total += s.values[i];
+            s.totalCounts = total;
+            reset();
+            listener.onSpectrumComplete(s);
+        }
+        return pos;
+    }
+
+    private Spectrum parseHeader() throws IOException {
+        final byte[] h = header;
+        Spectrum s = new Spectrum();
+        if (serial == null || !AsciiField.equals(h, 4, serial))
+            serial = new String(h, 4, 8, "ISO-8859-1"); // usually the same device, reuse String
+        s.serial = serial;
+        s.gain = (float) AsciiField.parseInt(h, 12, 15, "gain") / 100.0f;
+        s.offset = AsciiField.parseInt(h, 15, 18, "offset");
+        s.temperature = AsciiField.parseInt(h, 18, 21, "temperature");
+        s.acqTime = AsciiField.parseInt(h, 21, 24, "acquisition time");
+        s.doseRate = (float) AsciiField.parseInt(h, 24, 29, "dose rate") / 100.0f;
+        s.neutronRate = (float) AsciiField.parseInt(h, 29, 32, "neutron rate") / 100.0f;
+        s.date = 20000000 + AsciiField.parseInt(h, 42, 44, "year") * 10000 +
+                AsciiField.parseInt(h, 40, 42, "month") * 100 +
+                AsciiField.parseInt(h, 38, 40, "day");
+        s.time = AsciiField.parseInt(h, 32, 38, "time");
+        s.bins = AsciiField.parseInt(h, 44, 48, "bins");
+        s.number = AsciiField.parseInt(h, 48, 51, "spectrum number");
+        if (s.bins < 1 || s.bins > MAX_BINS)
+            throw new IOException("invalid number of bins " + s.bins);
+        return s;
+    }
+
+}
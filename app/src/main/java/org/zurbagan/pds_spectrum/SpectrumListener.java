@@ -0,0 +1,12 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * UI side of SerialService: serial events plus lightweight spectrum session events
+ */
+interface SpectrumListener extends SerialListener {
+    void onSpectrumCommand  (String msg);
+    void onSpectrumStatus   (String msg);
+    void onSpectrumProgress (int binsReceived, int bins, int bytesPerSecond);
+    void onSpectrumReceived (Spectrum spectrum);
+    void onBulkDownload     (boolean running);
+}
@@ -0,0 +1,564 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * PDS-100G protocol handling: send commands, decode replies, store spectra, bulk download
+ *
+ * all methods have to be called from the same (worker) thread. The listener is called
+ * from this thread too and should only forward lightweight events to the UI.
+ *
+ * commands are queued while a reply is outstanding. The next command is written as soon
+ * as the last byte of the current reply is decoded, before the spectrum is stored.
+ */
+final class SpectrumSession implements SpectrumDecoder.Listener, CommandScheduler.Listener {
+
+    interface Output {
+        void write(byte[] data) throws IOException;
+    }
+
+    interface Listener {
+        void onSessionCommand  (String msg);
+        void onSessionStatus   (String msg);
+        void onSessionProgress (int binsReceived, int bins, int bytesPerSecond); // rate limited, bins 0: aborted
+        void onSessionSpectrum (Spectrum spectrum); // complete, values are not modified any more
+        void onSessionBulkDownload (boolean running); // started or stopped
+        void onSessionData     (ChunkPool.Chunk chunk); // data not belonging to a reply, release chunk when done
+    }
+
+    private final Output output;
+    private final Listener listener;
+    private final LinkMetrics metrics;
+    private final File directory;
+    private final File archiveDirectory;
+    private SpectrumArchive archive;
+    private final SpectrumDecoder decoder;
+    private final CommandScheduler scheduler;
+    private final ArrayDeque<Command> queue = new ArrayDeque<>();
+    private final SpectrumWriter writer = new SpectrumWriter();
+    private final TransferProgress progress = new TransferProgress();
+    private final PeakFinder peakFinder = new PeakFinder();
+    private final PeakFitter peakFitter = new PeakFitter();
+    private final NuclideLibrary library = new NuclideLibrary();
+
+    private String   pds_Serial = "";       // PDS-100G serial number
+    private int      pds_SpectrNo = -1;     // spectrum number (from last to first in memory) [n..1]
+    private int      pds_Bins = 1024;       // bins of last spectrum, to estimate reply size
+    private boolean  print_debug = false;
+
+    private volatile boolean bulk_download = false; // walk device memory from last spectrum back to #1
+    private int      bulk_total = 0;        // spectra in device memory, known after first header
+    private int      bulk_done = 0;
+    private int      bulk_skipped = 0;      // already archived, not stored again
+    private int      bulk_missed = 0;       // lost to a retried G22002
+    private int      bulk_next = 0;         // highest number still wanted, all above were received
+    private int      bulk_saved = 0;        // older spectra all archived, not fetched
+    private long     bulk_savedBytes = 0;
+    private int      bytesPerSecond = 0;    // of the last transfer, to estimate saved link time
+
+    private volatile Spectrum lastSpectrum;
+
+    /**
+     * @param metrics command and reply timing is recorded here
+     * @param timer runs reply deadline checks in this (worker) thread
+     * @param directory where spectrum files are stored
+     * @param archiveDirectory where the binary spectrum archive is kept
+     */
+    SpectrumSession(Output output, Listener listener, LinkMetrics metrics, CommandScheduler.Timer timer,
+                    File directory, File archiveDirectory) {
+        this.output = output;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.directory = directory;
+        this.archiveDirectory = archiveDirectory;
+        this.decoder = new SpectrumDecoder(this);
+        this.scheduler = new CommandScheduler(timer, this);
+    }
+
+    boolean isBulkDownload() {
+        return bulk_download;
+    }
+
+    /**
+     * can be called from any thread
+     */
+    Spectrum getLastSpectrum() {
+        return lastSpectrum;
+    }
+
+    void receive(ChunkPool.Chunk chunk) {
+        if (decoder.isActive()) {
+            scheduler.onData();
+            if (print_debug)
+                listener.onSessionStatus("r..." + chunk.length);
+            int n = decoder.decode(chunk.data, 0, chunk.length);
+            if (n < chunk.length) { // data following the reply
+                System.arraycopy(chunk.data, n, chunk.data, 0, chunk.length - n);
+                chunk.length -= n;
+                listener.onSessionData(chunk);
+            } else {
+                chunk.release();
+            }
+        } else {
+            listener.onSessionData(chunk);
+        }
+    }
+
+    /**
+     * opened on first use
+     */
+    SpectrumArchive getArchive() throws IOException {
+        if (archive == null)
+            archive = new SpectrumArchive(archiveDirectory);
+        return archive;
+    }
+
+    void close() {
+        reset();
+        try {
+            if (archive != null)
+                archive.close();
+        } catch (IOException ignored) {
+        }
+        archive = null;
+    }
+
+    /**
+     * connection closed, forget pending reply
+     */
+    void reset() {
+        decoder.reset();
+        scheduler.done();
+        queue.clear();
+        progressAborted();
+        if (bulk_download)
+            stopBulkDownload("bulk download aborted after " + bulk_done + " spectra");
+    }
+
+    /**
+     * request last spectrum first, then previous ones
+     */
+    void requestSpectrum() {
+        boolean first = pds_SpectrNo < 0 && !scheduler.isPending() && queue.isEmpty();
+        enqueue(first ? Command.LAST_SPECTRUM : Command.PREV_SPECTRUM);
+    }
+
+    void startBulkDownload() {
+        bulk_download = true;
+        bulk_total = 0;
+        bulk_done = 0;
+        bulk_skipped = 0;
+        bulk_missed = 0;
+        bulk_next = 0;
+        bulk_saved = 0;
+        bulk_savedBytes = 0;
+        listener.onSessionBulkDownload(true);
+        listener.onSessionStatus("bulk download started");
+        if (!enqueue(Command.LAST_SPECTRUM))
+            stopBulkDownload("bulk download not started");
+    }
+
+    void stopBulkDownload() {
+        if (bulk_download)
+            stopBulkDownload("bulk download stopped after " + bulk_done + " spectra");
+    }
+
+    private void stopBulkDownload(String msg) {
+        bulk_download = false;
+        listener.onSessionBulkDownload(false);
+        listener.onSessionStatus(msg);
+    }
+
+    /**
+     * the next spectrum was already requested in onSpectrumComplete or onSpectrumSkipped
+     */
+    private void continueBulkDownload() {
+        if (bulk_next >= 1)
+            return;
+        String saved = "";
+        if (bulk_saved > 0) {
+            saved = ", #" + bulk_saved + "..#1 archived before and not fetched: " + bulk_savedBytes / 1024 + " kB";
+            if (bytesPerSecond > 0)
+                saved += String.format(Locale.US, ", %.1f s of link time saved", (double) bulk_savedBytes / bytesPerSecond);
+        }
+        stopBulkDownload("bulk download finished: " + bulk_done + " spectra, " +
+                bulk_skipped + " already archived" + (bulk_missed > 0 ? ", " + bulk_missed + " missed" : "") + saved);
+    }
+
+    /**
+     * count a bulk download reply. Every G22002 moves the device pointer back, also a retried
+     * one, so a spectrum lost to a retry shows up as a gap in the numbers. The protocol has no
+     * documented command to move forward again, so the gap is only reported.
+     *
+     * @param skipped already archived. Older spectra might be missing nevertheless
+     *                (single requests, stopped or failed bulk downloads), so go on down to #1
+     * @return command for the spectrum after this one, null when #1 was received
+     */
+    private Command bulkNext(Spectrum spectrum, boolean skipped) {
+        int number = spectrum.number;
+        if (number > bulk_next) {
+            listener.onSessionStatus("spectrum#" + number + " received again, not counted");
+        } else {
+            if (number < bulk_next) {
+                bulk_missed += bulk_next - number;
+                listener.onSessionStatus((number + 1 == bulk_next ? "spectrum#" + bulk_next :
+                        "spectra#" + (number + 1) + "..#" + bulk_next) + " missed, the device moved on during a retry");
+            }
+            if (skipped)
+                bulk_skipped++;
+            else
+                bulk_done++;
+            bulk_next = skipped && bulk_saved == number - 1 ? 0 : number - 1;
+            listener.onSessionStatus("bulk download: " + (bulk_total - bulk_next) + " of " + bulk_total);
+        }
+        return bulk_next < 1 ? null : Command.PREV_SPECTRUM;
+    }
+
+    /**
+     * send now, or after the outstanding reply
+     *
+     * @return false if sending failed
+     */
+    private boolean enqueue(Command command) {
+        if (scheduler.isPending()) {
+            queue.add(command);
+            return true;
+        }
+        return send(command);
+    }
+
+    /**
+     * reply to the outstanding command is complete, send the next one right away
+     *
+     * @param next sent before queued commands, null if none
+     */
+    private void replyDone(Command next) {
+        scheduler.done();
+        if (next == null)
+            next = queue.poll();
+        if (next != null && !send(next) && bulk_download)
+            stopBulkDownload("bulk download aborted after " + bulk_done + " spectra");
+    }
+
+    private boolean send(Command command) {
+        listener.onSessionCommand(command.description);
+        scheduler.start(command, expectedReplyLength(command));
+        return write(command);
+    }
+
+    private boolean write(Command command) {
+        try {
+            decoder.expectReply();
+            metrics.onCommand();
+            output.write(command.frame);
+            return true;
+        } catch (Exception e) {
+            decoder.reset();
+            scheduler.done();
+            queue.clear();
+            listener.onSessionStatus("send failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private int expectedReplyLength(Command command) {
+        if (command.isSpectrum())
+            return replyLength(pds_Bins);
+        return SpectrumDecoder.HEADER_LENGTH; // R18 is shorter
+    }
+
+    private static int replyLength(int bins) {
+        return SpectrumDecoder.HEADER_LENGTH + 2 * bins + SpectrumDecoder.TRAILER_LENGTH;
+    }
+
+    private void store_spectrum_file(Spectrum spectrum) {
+        File file = new File(directory, "pds_" + spectrum.dateString() + "_" + spectrum.timeString() + ".txt");
+
+        listener.onSessionStatus("Spectrum#" + spectrum.number + " Total counts: " +
+                spectrum.totalCounts);
+
+        try (OutputStream out = new FileOutputStream(file)) {
+            writer.write(spectrum, out);
+            listener.onSessionStatus("Spectrum " + spectrum.number + " saved to " +
+                    file.getPath());
+        } catch (Exception e) {
+            listener.onSessionStatus("Save to file error(s): " + e);
+        }
+    }
+
+    private boolean isArchived(Spectrum spectrum) {
+        try {
+            return getArchive().find(spectrum.serial, spectrum.date, spectrum.time, spectrum.number) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean isOlderArchived(Spectrum spectrum) {
+        try {
+            return getArchive().containsOlder(spectrum.serial, spectrum.number, spectrum.date, spectrum.time);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void store_spectrum_archive(Spectrum spectrum) {
+        try {
+            getArchive().append(spectrum);
+        } catch (Exception e) {
+            listener.onSessionStatus("Save to archive error(s): " + e);
+        }
+    }
+
+    /*
+     * SpectrumDecoder.Listener
+     */
+    @Override
+    public void onSerialNumber(String serial) {
+        metrics.onReply();
+        replyDone(null);
+        pds_Serial = serial;
+        listener.onSessionStatus("got pds S/N: " + pds_Serial);
+    }
+
+    @Override
+    public void onSpectrumHeader(Spectrum spectrum) {
+        pds_SpectrNo = spectrum.number;
+        pds_Bins = spectrum.bins;
+        scheduler.expect(replyLength(spectrum.bins));
+        progress.start(spectrum.bins, System.nanoTime());
+        listener.onSessionProgress(0, spectrum.bins, 0);
+        if (bulk_download && bulk_total == 0)
+            bulk_total = bulk_next = spectrum.number;
+        listener.onSessionStatus("Spectrum " + spectrum.number + " " + spectrum.dateString() + "-" +
+                spectrum.timeString() + " started with " + spectrum.bins + " bins");
+        listener.onSessionStatus(" " +
+                " Gain: " + String.format(Locale.US, "%.02f", spectrum.gain) +
+                " offset: " + spectrum.offset +
+                " Temp:" + spectrum.temperature +
+                " Time: " + spectrum.acqTime + " sec");
+        if (isArchived(spectrum)) {
+            decoder.skip();
+            listener.onSessionStatus("Spectrum " + spectrum.number + " already archived, skipped");
+            // the device cannot cancel this transfer, but the walk can end after it
+            if (bulk_download && spectrum.number == bulk_next && spectrum.number > 1 && isOlderArchived(spectrum)) {
+                bulk_saved = spectrum.number - 1;
+                bulk_savedBytes = (long) bulk_saved * replyLength(spectrum.bins);
+            }
+        }
+    }
+
+    @Override
+    public void onSpectrumSkipped(Spectrum spectrum) {
+        metrics.onReply();
+        replyDone(bulk_download ? bulkNext(spectrum, true) : null);
+        progressDone(spectrum);
+        if (bulk_download)
+            continueBulkDownload();
+    }
+
+    @Override
+    public void onSpectrumProgress(Spectrum spectrum, int binsReceived) {
+        if (progress.update(binsReceived, System.nanoTime()))
+            listener.onSessionProgress(binsReceived, spectrum.bins, progress.getBytesPerSecond());
+    }
+
+    private void progressDone(Spectrum spectrum) {
+        progress.update(spectrum.bins, System.nanoTime());
+        if (progress.getBytesPerSecond() > 0)
+            bytesPerSecond = progress.getBytesPerSecond();
+        listener.onSessionProgress(spectrum.bins, spectrum.bins, progress.getBytesPerSecond());
+    }
+
+    /**
+     * hide the progress of a transfer that is given up, else it stays at the last update
+     */
+    private void progressAborted() {
+        if (!progress.isActive())
+            return;
+        progress.cancel();
+        listener.onSessionProgress(0, 0, 0);
+    }
+
+    @Override
+    public void onSpectrumComplete(Spectrum spectrum) {
+        metrics.onReply();
+        replyDone(bulk_download ? bulkNext(spectrum, false) : null);
+        progressDone(spectrum);
+        listener.onSessionStatus("all " + spectrum.bins + " bins fetched");
+        if (print_debug) {
+            for (int i = 0; i < spectrum.bins; i++) {
+                if (i < 50 || i > spectrum.bins - 50) {
+                    listener.onSessionStatus(" " + i + ": " +
+                            String.format("%05d", spectrum.values[i]) + " " +
+                            String.format("%04x", spectrum.values[i]));
+                }
+            }
+        }
+        findPeaks(spectrum);
+        identify(spectrum);
+        lastSpectrum = spectrum;
+        listener.onSessionSpectrum(spectrum);
+        store_spectrum_file(spectrum);
+        store_spectrum_archive(spectrum);
+        listener.onSessionStatus("Done for spectrum#" + spectrum.number + " Total counts: " +
+                spectrum.totalCounts);
+        if (bulk_download)
+            continueBulkDownload();
+    }
+
+    private void findPeaks(Spectrum spectrum) {
+        spectrum.peaks = peakFinder.find(spectrum);
+        spectrum.fits = peakFitter.fitAll(spectrum);
+        PeakFitter.Fits fits = spectrum.fits;
+        if (fits.count == 0)
+            return;
+        StringBuilder sb = new StringBuilder("Peaks:");
+        for (int i = 0; i < fits.count; i++) {
+            if (Float.isNaN(fits.area[i]))
+                sb.append(String.format(Locale.US, " %.0f keV (no fit)", fits.energy[i]));
+            else
+                sb.append(String.format(Locale.US, " %.0f keV (FWHM %.1f%%, %.0f+-%.0f)", fits.energy[i],
+                        100 * fits.fwhm[i] / fits.energy[i], fits.area[i], fits.areaError[i]));
+        }
+        listener.onSessionStatus(sb.toString());
+    }
+
+    /**
+     * user calibrations saved in this file are used from now on
+     */
+    void loadCalibrations(File file) {
+        try {
+            Calibration.load(file);
+        } catch (IOException e) {
+            listener.onSessionStatus("calibrations not loaded: " + e.getMessage());
+        }
+    }
+
+    /**
+     * fit a user calibration to the peaks of the last spectrum, each reference energy is assigned
+     * to the peak nearest in energy, so gain and offset have to be roughly right. No energies
+     * return to gain and offset. The last spectrum is analysed again with the new calibration.
+     *
+     * @param energies keV of known lines in the last spectrum
+     */
+    void calibrate(float[] energies) {
+        Spectrum spectrum = lastSpectrum;
+        PeakFitter.Fits fits = spectrum != null ? spectrum.fits : null;
+        if (fits == null || fits.count < Math.min(energies.length, 2)) {
+            listener.onSessionStatus("calibration needs a spectrum with at least 2 peaks");
+            return;
+        }
+        Calibration calibration = null;
+        if (energies.length > 0) {
+            int n = energies.length;
+            double[] channels = new double[n], references = new double[n];
+            int[] used = new int[n];
+            for (int i = 0; i < n; i++) {
+                int best = 0;
+                for (int p = 1; p < fits.count; p++)
+                    if (Math.abs(fits.energy[p] - energies[i]) < Math.abs(fits.energy[best] - energies[i]))
+                        best = p;
+                for (int j = 0; j < i; j++) {
+                    if (used[j] == best) {
+                        listener.onSessionStatus(String.format(Locale.US, "calibration failed: %.1f and %.1f keV at the same peak",
+                                energies[j], energies[i]));
+                        return;
+                    }
+                }
+                used[i] = best;
+                channels[i] = fits.centroid[best];
+                references[i] = energies[i];
+            }
+            try {
+                calibration = Calibration.fit(channels, references, n, spectrum.bins);
+            } catch (IllegalArgumentException e) {
+                listener.onSessionStatus("calibration failed: " + e.getMessage());
+                return;
+            }
+        }
+        try {
+            Calibration.setUser(spectrum.serial, spectrum.gain, spectrum.bins, calibration);
+        } catch (IOException e) {
+            listener.onSessionStatus("calibration not saved: " + e.getMessage());
+        }
+        if (calibration == null)
+            listener.onSessionStatus("calibration of " + spectrum.serial + " reset to gain and offset");
+        else
+            listener.onSessionStatus(String.format(Locale.US, "calibration of %s with gain %.2f, %d bins: E = %.3f + %.5f ch + %.3g ch^2",
+                    spectrum.serial, spectrum.gain, spectrum.bins, calibration.c0, calibration.c1, calibration.c2));
+        findPeaks(spectrum);
+        identify(spectrum);
+        updateArchivedNuclides(spectrum);
+        listener.onSessionSpectrum(spectrum);
+    }
+
+    /**
+     * archive searches by nuclide follow the latest identification
+     */
+    private void updateArchivedNuclides(Spectrum spectrum) {
+        try {
+            SpectrumArchive archive = getArchive();
+            int i = archive.find(spectrum.serial, spectrum.date, spectrum.time, spectrum.number);
+            if (i >= 0)
+                archive.setNuclides(i, spectrum.nuclides.mask);
+        } catch (IOException e) {
+            listener.onSessionStatus("Save to archive error(s): " + e);
+        }
+    }
+
+    private void identify(Spectrum spectrum) {
+        spectrum.nuclides = library.identify(spectrum);
+        NuclideLibrary.Matches nuclides = spectrum.nuclides;
+        if (nuclides.count == 0)
+            return;
+        StringBuilder sb = new StringBuilder("Nuclides:");
+        for (int i = 0; i < nuclides.count; i++)
+            sb.append(String.format(Locale.US, " %s (%.0f%%)", nuclides.name(i), 100 * nuclides.score[i]));
+        listener.onSessionStatus(sb.toString());
+    }
+
+    @Override
+    public void onDecodeError(Exception e) {
+        metrics.onFrameError();
+        listener.onSessionStatus("garbage dropped, waiting for next reply: " + e.getMessage());
+    }
+
+    @Override
+    public void onSpectrumCorrupt(Spectrum spectrum, String reason) {
+        metrics.onFrameError();
+        progressDone(spectrum);
+        listener.onSessionStatus("Spectrum " + spectrum.number + " corrupt, " + reason);
+        scheduler.fail("corrupt reply");
+    }
+
+    /*
+     * CommandScheduler.Listener
+     */
+    @Override
+    public void onCommandRetry(Command command, int retry, String reason) {
+        metrics.onTimeout();
+        listener.onSessionCommand("CMD: " + command.code + " again (" + retry + " of " +
+                CommandScheduler.MAX_RETRIES + "), " + reason);
+        if (!write(command) && bulk_download)
+            stopBulkDownload("bulk download aborted after " + bulk_done + " spectra");
+    }
+
+    @Override
+    public void onCommandFailed(Command command, String reason) {
+        metrics.onTimeout();
+        decoder.reset();
+        queue.clear();
+        progressAborted();
+        listener.onSessionStatus(command.code + " failed after " + (CommandScheduler.MAX_RETRIES + 1) +
+                " attempts: " + reason);
+        if (bulk_download)
+            stopBulkDownload("bulk download aborted after " + bulk_done + " spectra");
+    }
+
+}
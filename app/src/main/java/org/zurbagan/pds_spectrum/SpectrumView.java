@@ -0,0 +1,238 @@
+package org.zurbagan.pds_spectrum;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * spectrum plot, counts per bin on a linear or log scale
+ *
+ * each pixel column is drawn as one vertical line from min to max count of its bins,
+ * taken from a MinMaxPyramid, so 512..4096 bins draw as fast as a screen width of lines.
+ * The pyramid is rebuilt once per new spectrum, columns only when spectrum, zoom or size
+ * changed. Peaks found by PeakFinder are marked at the top. Pinch to zoom, drag to pan,
+ * double tap to show all bins.
+ */
+public class SpectrumView extends View {
+
+    private static final int MIN_VISIBLE_BINS = 16;
+
+    private final MinMaxPyramid pyramid = new MinMaxPyramid();
+    private final Paint linePaint = new Paint();
+    private final Paint peakPaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final ScaleGestureDetector scaleDetector;
+    private final GestureDetector gestureDetector;
+
+    private Spectrum spectrum;
+    private boolean logScale;
+    private float from, to;             // visible bins [from, to)
+    private boolean pyramidDirty;
+    private boolean columnsDirty = true;
+    private int[] columnMin = new int[0];
+    private int[] columnMax = new int[0];
+    private float[] lines = new float[0];
+    private int maxCount;               // of visible bins
+    private String leftLabel = "", rightLabel = "", maxLabel = "";
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        linePaint.setColor(Color.GREEN);
+        linePaint.setStrokeWidth(0); // hairline
+        peakPaint.setColor(Color.YELLOW);
+        peakPaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        textPaint.setColor(Color.LTGRAY);
+        textPaint.setTextSize(11 * getResources().getDisplayMetrics().scaledDensity);
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoom(detector.getScaleFactor(), detector.getFocusX());
+                return true;
+            }
+        });
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                pan(distanceX);
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                showAll();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * zoom is kept if the number of bins is the same. The same spectrum again only updates
+     * peaks and labels, e.g. after a new calibration
+     */
+    void setSpectrum(Spectrum spectrum) {
+        if (spectrum == null)
+            return;
+        if (spectrum == this.spectrum) {
+            columnsDirty = true;
+            invalidate();
+            return;
+        }
+        boolean sameBins = this.spectrum != null && this.spectrum.bins == spectrum.bins;
+        this.spectrum = spectrum;
+        pyramidDirty = true;
+        if (sameBins)
+            columnsDirty = true;
+        else
+            showAll();
+        invalidate();
+    }
+
+    void setLogScale(boolean logScale) {
+        if (this.logScale == logScale)
+            return;
+        this.logScale = logScale;
+        invalidate();
+    }
+
+    boolean isLogScale() {
+        return logScale;
+    }
+
+    private void showAll() {
+        from = 0;
+        to = spectrum != null ? spectrum.bins : 0;
+        columnsDirty = true;
+        invalidate();
+    }
+
+    private void zoom(float factor, float focusX) {
+        if (spectrum == null || getWidth() == 0)
+            return;
+        float width = to - from;
+        float focus = from + width * focusX / getWidth();
+        float newWidth = Math.max(MIN_VISIBLE_BINS, Math.min(spectrum.bins, width / factor));
+        setRange(focus - (focus - from) * newWidth / width, newWidth);
+    }
+
+    private void pan(float distanceX) {
+        if (spectrum == null || getWidth() == 0)
+            return;
+        float width = to - from;
+        setRange(from + distanceX * width / getWidth(), width);
+    }
+
+    private void setRange(float newFrom, float width) {
+        newFrom = Math.max(0, Math.min(newFrom, spectrum.bins - width));
+        if (newFrom == from && newFrom + width == to)
+            return;
+        from = newFrom;
+        to = newFrom + width;
+        columnsDirty = true;
+        invalidate();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = scaleDetector.onTouchEvent(event);
+        if (!scaleDetector.isInProgress())
+            handled |= gestureDetector.onTouchEvent(event);
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        columnsDirty = true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (spectrum == null || spectrum.bins == 0 || width <= 0 || height <= 0)
+            return;
+        if (pyramidDirty) {
+            pyramid.build(spectrum.values, spectrum.bins);
+            pyramidDirty = false;
+        }
+        if (columnsDirty) {
+            updateColumns(width);
+            columnsDirty = false;
+        }
+        float textHeight = textPaint.getTextSize();
+        float plotHeight = height - textHeight;
+        float scale = maxCount > 0 ? plotHeight / scaled(maxCount) : 0;
+        final float left = getPaddingLeft(), bottom = getPaddingTop() + plotHeight;
+        final float[] lines = this.lines;
+        int n = 0;
+        for (int c = 0; c < width; c++) {
+            int lo = columnMin[c], hi = columnMax[c];
+            if (c > 0) {    // overlap previous column, no gaps on steep slopes
+                lo = Math.min(lo, columnMax[c - 1]);
+                hi = Math.max(hi, columnMin[c - 1]);
+            }
+            float x = left + c + 0.5f;
+            lines[n++] = x;
+            lines[n++] = bottom - scaled(lo) * scale + 0.5f;
+            lines[n++] = x;
+            lines[n++] = bottom - scaled(hi) * scale - 0.5f;
+        }
+        canvas.drawLines(lines, 0, n, linePaint);
+
+        final PeakFinder.Peaks peaks = spectrum.peaks;
+        if (peaks != null) {
+            float top = getPaddingTop() + textHeight, markerHeight = textHeight;
+            for (int i = 0; i < peaks.count; i++) {
+                if (peaks.channel[i] < from || peaks.channel[i] >= to)
+                    continue;
+                float x = left + (peaks.channel[i] + 0.5f - from) * width / (to - from);
+                canvas.drawLine(x, top, x, top + markerHeight, peakPaint);
+            }
+        }
+
+        float baseline = getHeight() - getPaddingBottom() - textPaint.descent();
+        canvas.drawText(leftLabel, left, baseline, textPaint);
+        canvas.drawText(rightLabel, left + width - textPaint.measureText(rightLabel), baseline, textPaint);
+        canvas.drawText(maxLabel, left, getPaddingTop() + textHeight, textPaint);
+    }
+
+    private float scaled(int counts) {
+        return logScale ? (float) Math.log1p(counts) : counts;
+    }
+
+    private void updateColumns(int width) {
+        if (columnMin.length < width) {
+            columnMin = new int[width];
+            columnMax = new int[width];
+            lines = new float[4 * width];
+        }
+        int a = (int) from, b = (int) Math.ceil(to);
+        pyramid.columns(a, b, width, columnMin, columnMax);
+        maxCount = 0;
+        for (int c = 0; c < width; c++)
+            maxCount = Math.max(maxCount, columnMax[c]);
+        Calibration.Table calibration = Calibration.table(spectrum);
+        leftLabel = String.format(Locale.US, "%d: %.0f keV", a, calibration.energy(a));
+        rightLabel = String.format(Locale.US, "%d: %.0f keV", b - 1, calibration.energy(b - 1));
+        maxLabel = String.format(Locale.US, "%d counts", maxCount);
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * write spectrum in "FORMAT: 2" text format
+ *
+ *   FORMAT: 2
+ *   2021.03.22 14:27:48 +0200 Counts: 467211, ~cps: 586.212, Time: 797.00 s
+ *   1616416068002                  localtime of spectrum as unixtime in ms
+ *   0                              ?
+ *   0                              ?
+ *   0                              ?
+ *   797.000000                     acquisition time
+ *   1024                           number of channels
+ *   2                              polynomial degree, points from Calibration
+ *   100.000000                     calibration point c1
+ *   477.315190                     calibration point e1
+ *   ...                            c2, e2, c3, e3
+ *   <counts, one line per channel>
+ *
+ * numbers are formatted into one reusable byte buffer, no Formatter or String per line.
+ * Not thread safe, use one writer per thread.
+ */
+final class SpectrumWriter {
+
+    private static final float[] CALIBRATION_CHANNELS = {100f, 500f, 1000f};
+
+    private final byte[] buf = new byte[8192];
+    private final byte[] digits = new byte[20];
+    private final Calendar calendar = Calendar.getInstance();
+    private OutputStream out;
+    private int pos;
+
+    /**
+     * @return localtime of spectrum acquisition as unixtime in ms
+     */
+    long timestamp(Spectrum spectrum) {
+        calendar.setTimeZone(TimeZone.getDefault());
+        calendar.clear();
+        calendar.set(spectrum.date / 10000, spectrum.date / 100 % 100 - 1, spectrum.date % 100,
+                spectrum.time / 10000, spectrum.time / 100 % 100, spectrum.time % 100);
+        return calendar.getTimeInMillis();
+    }
+
+    void write(Spectrum spectrum, OutputStream out) throws IOException {
+        this.out = out;
+        pos = 0;
+        try {
+            long timestamp = timestamp(spectrum);
+            int zoneOffset = calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+
+            putAscii("FORMAT: 2\n");
+            putLong(spectrum.date / 10000, 4); put('.');
+            putLong(spectrum.date / 100 % 100, 2); put('.');
+            putLong(spectrum.date % 100, 2); put(' ');
+            putLong(spectrum.time / 10000, 2); put(':');
+            putLong(spectrum.time / 100 % 100, 2); put(':');
+            putLong(spectrum.time % 100, 2); put(' ');
+            put(zoneOffset < 0 ? '-' : '+');
+            zoneOffset = Math.abs(zoneOffset) / 60000;
+            putLong(zoneOffset / 60, 2);
+            putLong(zoneOffset % 60, 2);
+            putAscii(" Counts: "); putLong(spectrum.totalCounts, 1);
+            putAscii(", ~cps: "); putFixed(spectrum.acqTime > 0 ? (double) spectrum.totalCounts / spectrum.acqTime : 0, 3);
+            putAscii(", Time: "); putFixed(spectrum.acqTime, 2);
+            putAscii(" s\n");
+            putLong(timestamp, 1); put('\n');
+            putAscii("0\n0\n0\n");
+            putFixed(spectrum.acqTime, 6); put('\n');
+            putLong(spectrum.bins, 1); put('\n');
+            putLong(2, 1); put('\n');
+            Calibration.Table calibration = Calibration.table(spectrum);
+            for (float channel : CALIBRATION_CHANNELS) {
+                putFixed(channel, 6); put('\n');
+                putFixed(calibration.energy(channel), 6); put('\n');
+            }
+            final int[] values = spectrum.values;
+            for (int i = 0; i < spectrum.bins; i++) {
+                putLong(values[i], 1); // leaves room for newline
+                buf[pos++] = '\n';
+            }
+            flush();
+        } finally {
+            this.out = null;
+        }
+    }
+
+    private void flush() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    private void put(char c) throws IOException {
+        if (pos == buf.length)
+            flush();
+        buf[pos++] = (byte) c;
+    }
+
+    private void putAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            put(s.charAt(i));
+    }
+
+    private void putLong(long value, int minDigits) throws IOException {
+        if (pos > buf.length - 24)
+            flush();
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n < minDigits)
+            digits[n++] = '0';
+        while (n > 0)
+            buf[pos++] = digits[--n];
+    }
+
+    /**
+     * like %.nf with Locale.US
+     */
+    private void putFixed(double value, int decimals) throws IOException {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++)
+            scale *= 10;
+        long fixed = Math.round(Math.abs(value) * scale);
+        if (value < 0 && fixed != 0)
+            put('-');
+        putLong(fixed / scale, 1);
+        if (decimals > 0) {
+            put('.');
+            putLong(fixed % scale, decimals);
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * TCP transport for serial-to-TCP bridges like ser2net, address "tcp://host:port"
+ *
+ * uses a non-blocking SocketChannel. All TCP transports share one selector thread,
+ * so a station with many links does not need a blocked thread per link.
+ * Listener callbacks run in the selector thread.
+ */
+final class TcpTransport implements Transport {
+
+    static final String SCHEME = "tcp://";
+
+    private final String host;
+    private final int port;
+    private final ChunkPool pool = new ChunkPool(1024, 64);
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>(); // guarded by itself
+    private volatile SerialListener listener;
+    private volatile SocketChannel channel;
+    private volatile boolean connected;
+    private SelectionKey key;   // selector thread only
+
+    TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param address tcp://host:port
+     */
+    static TcpTransport parse(String address) throws IOException {
+        if (!address.startsWith(SCHEME))
+            throw new IOException("not a TCP address: " + address);
+        String hostPort = address.substring(SCHEME.length());
+        int colon = hostPort.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IOException("port missing in " + address);
+        try {
+            int port = Integer.parseInt(hostPort.substring(colon + 1));
+            if (port <= 0 || port > 65535)
+                throw new NumberFormatException();
+            return new TcpTransport(hostPort.substring(0, colon), port);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid port in " + address);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    /**
+     * host name lookup and connect run asynchronously, the result is returned to listener
+     */
+    @Override
+    public void connect(SerialListener listener) throws IOException {
+        this.listener = listener;
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // commands are short, don't wait for more
+        this.channel = channel;
+        SelectorThread selector = SelectorThread.get();
+        Thread resolver = new Thread(() -> {
+            try {
+                InetSocketAddress address = new InetSocketAddress(host, port);
+                if (address.isUnresolved())
+                    throw new IOException("unknown host " + host);
+                channel.connect(address);
+                selector.execute(() -> register(selector.selector, channel));
+            } catch (Exception e) {
+                failed(e);
+            }
+        }, "tcp connect " + getName());
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    @Override
+    public void disconnect() {
+        listener = null; // ignore remaining data and errors
+        connected = false;
+        close();
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        SocketChannel channel = this.channel;
+        if (!connected || channel == null)
+            throw new IOException("not connected");
+        synchronized (pendingWrites) {
+            pendingWrites.add(ByteBuffer.wrap(data));
+            if (pendingWrites.size() > 1)
+                return; // selector thread is already waiting to write
+            if (flushWrites(channel))
+                return;
+        }
+        SelectorThread.get().execute(() -> {
+            if (key != null && key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /**
+     * @return true if all pending data is written
+     */
+    private boolean flushWrites(SocketChannel channel) throws IOException {
+        synchronized (pendingWrites) {
+            ByteBuffer buf;
+            while ((buf = pendingWrites.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining())
+                    return false; // socket buffer full
+                pendingWrites.poll();
+            }
+            return true;
+        }
+    }
+
+    /*
+     * selector thread
+     */
+    private void register(Selector selector, SocketChannel channel) {
+        try {
+            if (channel != this.channel)
+                return; // disconnected meanwhile
+            boolean pending = channel.isConnectionPending();
+            key = channel.register(selector, pending ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+            if (!pending)
+                connected();
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    private void connected() {
+        connected = true;
+        SerialListener listener = this.listener;
+        if (listener != null)
+            listener.onSerialConnect();
+    }
+
+    private void ready(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                connected();
+            }
+            if (key.isValid() && key.isReadable())
+                read(channel);
+            if (key.isValid() && key.isWritable() && flushWrites(channel))
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    private void read(SocketChannel channel) throws IOException {
+        ChunkPool.Chunk chunk = pool.obtain();
+        int length = channel.read(ByteBuffer.wrap(chunk.data));
+        if (length < 0) {
+            chunk.release();
+            throw new IOException("end of stream");
+        }
+        chunk.length = length;
+        SerialListener listener = this.listener;
+        if (listener != null && length > 0)
+            listener.onSerialRead(chunk);
+        else
+            chunk.release();
+    }
+
+    private void failed(Exception e) {
+        SerialListener listener = this.listener;
+        boolean wasConnected = connected;
+        connected = false;
+        close();
+        if (listener == null)
+            return;
+        if (wasConnected)
+            listener.onSerialIoError(e);
+        else
+            listener.onSerialConnectError(e);
+    }
+
+    private void close() {
+        SocketChannel channel = this.channel;
+        this.channel = null;
+        synchronized (pendingWrites) {
+            pendingWrites.clear();
+        }
+        if (channel != null) {
+            try {
+                channel.close(); // also cancels the selection key
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * one daemon thread multiplexing all TCP transports, started on first use
+     */
+    private static final class SelectorThread implements Runnable {
+
+        private static SelectorThread instance;
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private SelectorThread() throws IOException {
+            selector = Selector.open();
+        }
+
+        static synchronized SelectorThread get() throws IOException {
+            if (instance == null) {
+                instance = new SelectorThread();
+                Thread thread = new Thread(instance, "tcp selector");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return instance;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((TcpTransport) key.attachment()).ready(key);
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (SelectorThread.class) {
+                    instance = null; // next connect starts a new selector
+                }
+                for (SelectionKey key : selector.keys())
+                    ((TcpTransport) key.attachment()).failed(e);
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package org.zurbagan.pds_spectrum;
+
+import java.util.Arrays;
+
+/**
+ * hex and caret codecs without Android dependencies, used by TextUtil
+ *
+ * table driven and writing into caller supplied, reusable sinks, so terminal output
+ * of a long transfer does not allocate per chunk.
+ */
+final class TextCodec {
+
+    private static final char[] HEX_PAIRS = new char[512];  // byte -> 2 upper case hex digits
+    private static final byte[] NIBBLES = new byte[128];    // char -> value, -1 if no hex digit
+
+    static {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        for (int b = 0; b < 256; b++) {
+            HEX_PAIRS[2 * b] = digits[b >> 4];
+            HEX_PAIRS[2 * b + 1] = digits[b & 15];
+        }
+        Arrays.fill(NIBBLES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            NIBBLES[digits[i]] = (byte) i;
+            NIBBLES[Character.toLowerCase(digits[i])] = (byte) i;
+        }
+    }
+
+    /**
+     * reusable output of toCaret
+     */
+    static final class CaretText {
+        char[] chars = new char[256];
+        int length;
+        int[] runs = new int[16];   // start, end pairs of caret notation runs in chars
+        int runCount;
+    }
+
+    private TextCodec() {}
+
+    /**
+     * decode hex digit pairs, other characters are ignored. A single trailing digit is a byte too
+     *
+     * @param sink needs room for (s.length() + 1) / 2 bytes
+     * @return number of bytes written
+     */
+    static int fromHex(final CharSequence s, final byte[] sink) {
+        int n = 0;
+        int b = 0;
+        int nibble = 0;
+        for(int pos = 0; pos<s.length(); pos++) {
+            char c = s.charAt(pos);
+            int v = c < 128 ? NIBBLES[c] : -1;
+            if(v < 0)
+                continue;
+            b = b << 4 | v;
+            if(++nibble == 2) {
+                sink[n++] = (byte) b;
+                nibble = 0;
+                b = 0;
+            }
+        }
+        if(nibble > 0)
+            sink[n++] = (byte) b;
+        return n;
+    }
+
+    static byte[] fromHexString(final CharSequence s) {
+        byte[] buf = new byte[(s.length() + 1) / 2];
+        return Arrays.copyOf(buf, fromHex(s, buf));
+    }
+
+    /**
+     * encode as "XX XX XX"
+     *
+     * @param separate also put a space before the first byte
+     * @param sink needs room for 3 chars per byte
+     * @return end position in sink
+     */
+    static int toHex(final byte[] buf, int begin, int end, final char[] sink, int pos, boolean separate) {
+        for(int i=begin; i<end; i++) {
+            if(separate)
+                sink[pos++] = ' ';
+            separate = true;
+            int p = 2 * (buf[i] & 0xff);
+            sink[pos++] = HEX_PAIRS[p];
+            sink[pos++] = HEX_PAIRS[p + 1];
+        }
+        return pos;
+    }
+
+    static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        for(int i=begin; i<end; i++) {
+            if(sb.length()>0)
+                sb.append(' ');
+            int p = 2 * (buf[i] & 0xff);
+            sb.append(HEX_PAIRS[p]).append(HEX_PAIRS[p + 1]);
+        }
+    }
+
+    static boolean needsCaret(CharSequence s, boolean keepNewline, int length) {
+        for (int pos = 0; pos < length; pos++) {
+            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n'))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * https://en.wikipedia.org/wiki/Caret_notation
+     *
+     * consecutive control characters form one run in out.runs
+     */
+    static void toCaret(CharSequence s, boolean keepNewline, int length, CaretText out) {
+        if (out.chars.length < 2 * length)
+            out.chars = new char[2 * length];
+        final char[] chars = out.chars;
+        int n = 0;
+        int runs = 0;
+        boolean inRun = false;
+        for(int pos=0; pos<length; pos++) {
+            char c = s.charAt(pos);
+            if (c < 32 && (!keepNewline || c != '\n')) {
+                if (!inRun) {
+                    if (2 * runs + 2 > out.runs.length)
+                        out.runs = Arrays.copyOf(out.runs, 2 * out.runs.length);
+                    out.runs[2 * runs] = n;
+                    inRun = true;
+                }
+                chars[n++] = '^';
+                chars[n++] = (char) (c + 64);
+            } else {
+                if (inRun) {
+                    out.runs[2 * runs++ + 1] = n;
+                    inRun = false;
+                }
+                chars[n++] = c;
+            }
+        }
+        if (inRun)
+            out.runs[2 * runs++ + 1] = n;
+        out.length = n;
+        out.runCount = runs;
+    }
+
+}
@@ -10,7 +10,7 @@ import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.CharBuffer;
 
 final class TextUtil {
 
@@ -20,23 +20,7 @@ final class TextUtil {
     final static String newline_lf = "\n";
 
     static byte[] fromHexString(final CharSequence s) {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte b = 0;
-        int nibble = 0;
-        for(int pos = 0; pos<s.length(); pos++) {
-            if(nibble==2) {
-                buf.write(b);
-                nibble = 0;
-                b = 0;
-            }
-            int c = s.charAt(pos);
-            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
-            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
-            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
-        }
-        if(nibble>0)
-            buf.write(b);
-        return buf.toByteArray();
+        return TextCodec.fromHexString(s);
     }
 
     static String toHexString(final byte[] buf) {
@@ -54,19 +38,7 @@ final class TextUtil {
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
-        for(int pos=begin; pos<end; pos++) {
-            if(sb.length()>0)
-                sb.append(' ');
-            int c;
-            c = (buf[pos]&0xff) / 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-            c = (buf[pos]&0xff) % 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-        }
+        TextCodec.toHexString(sb, buf, begin, end);
     }
 
     /**
@@ -77,24 +49,23 @@ final class TextUtil {
     }
 
     static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length) {
-        boolean found = false;
-        for (int pos = 0; pos < length; pos++) {
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                found = true;
-                break;
-            }
-        }
-        if(!found)
+        return toCaretString(s, keepNewline, length, new TextCodec.CaretText());
+    }
+
+    /**
+     * @param caret reusable buffer, one span is created per run of control characters
+     */
+    static CharSequence toCaretString(CharSequence s, boolean keepNewline, TextCodec.CaretText caret) {
+        return toCaretString(s, keepNewline, s.length(), caret);
+    }
+
+    private static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length, TextCodec.CaretText caret) {
+        if(!TextCodec.needsCaret(s, keepNewline, length))
             return s;
-        SpannableStringBuilder sb = new SpannableStringBuilder();
-        for(int pos=0; pos<length; pos++)
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                sb.append('^');
-                sb.append((char)(s.charAt(pos) + 64));
-                sb.setSpan(new BackgroundColorSpan(caretBackground), sb.length()-2, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            } else {
-                sb.append(s.charAt(pos));
-            }
+        TextCodec.toCaret(s, keepNewline, length, caret);
+        SpannableStringBuilder sb = new SpannableStringBuilder(CharBuffer.wrap(caret.chars, 0, caret.length));
+        for(int i=0; i<caret.runCount; i++)
+            sb.setSpan(new BackgroundColorSpan(caretBackground), caret.runs[2*i], caret.runs[2*i+1], Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         return sb;
     }
 
@@ -0,0 +1,64 @@
+package org.zurbagan.pds_spectrum;
+
+/**
+ * progress and throughput of one spectrum transfer, rate limited
+ * so the UI is updated at most a few times per second however fast chunks arrive
+ */
+final class TransferProgress {
+
+    static final long REPORT_INTERVAL_NANOS = 250_000_000L;
+
+    private long startNanos;
+    private long lastReportNanos;
+    private int bins;
+    private int binsReceived;
+
+    void start(int bins, long nowNanos) {
+        this.bins = bins;
+        this.binsReceived = 0;
+        this.startNanos = nowNanos;
+        this.lastReportNanos = nowNanos;
+    }
+
+    /**
+     * @return true if this update should be reported: first and last one, else rate limited
+     */
+    boolean update(int binsReceived, long nowNanos) {
+        this.binsReceived = binsReceived;
+        if (binsReceived < bins && nowNanos - lastReportNanos < REPORT_INTERVAL_NANOS)
+            return false;
+        lastReportNanos = nowNanos;
+        return true;
+    }
+
+    /**
+     * transfer will not complete, nothing in progress afterwards
+     */
+    void cancel() {
+        bins = binsReceived = 0;
+    }
+
+    /**
+     * @return true between start and the update with all bins
+     */
+    boolean isActive() {
+        return binsReceived < bins;
+    }
+
+    int getBins() {
+        return bins;
+    }
+
+    int getBinsReceived() {
+        return binsReceived;
+    }
+
+    /**
+     * bin data rate since start of transfer, 0 if unknown
+     */
+    int getBytesPerSecond() {
+        long elapsed = lastReportNanos - startNanos;
+        return elapsed > 0 ? (int) (2L * binsReceived * 1_000_000_000L / elapsed) : 0;
+    }
+
+}
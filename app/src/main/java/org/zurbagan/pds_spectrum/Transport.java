@@ -0,0 +1,27 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.IOException;
+
+/**
+ * byte stream link to the device, e.g. Bluetooth SPP or TCP to a serial bridge
+ *
+ * connect-success, reads and errors are returned asynchronously to the listener,
+ * from a thread owned by the transport
+ */
+interface Transport {
+
+    String getName();
+
+    void connect(SerialListener listener) throws IOException;
+
+    /**
+     * close the link, remaining data and errors are ignored
+     */
+    void disconnect();
+
+    /**
+     * called from the worker thread, must not block for long
+     */
+    void write(byte[] data) throws IOException;
+
+}
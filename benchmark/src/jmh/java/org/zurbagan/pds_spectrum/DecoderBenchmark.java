@@ -0,0 +1,69 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * complete R22 reply fed to the decoder in Bluetooth sized reads
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecoderBenchmark implements SpectrumDecoder.Listener {
+
+    @Param({"512", "1024", "4096"})
+    int bins;
+
+    @Param({"1024"})
+    int chunkSize;
+
+    private byte[] frame;
+    private SpectrumDecoder decoder;
+    private boolean skip;
+    private Spectrum result;
+
+    @Setup
+    public void setup() {
+        frame = Frames.r22(bins, 1, 42);
+        decoder = new SpectrumDecoder(this);
+    }
+
+    private Spectrum feed() {
+        result = null;
+        decoder.expectReply();
+        for (int off = 0; off < frame.length; off += chunkSize)
+            decoder.decode(frame, off, Math.min(chunkSize, frame.length - off));
+        if (result == null)
+            throw new IllegalStateException("spectrum not decoded");
+        return result;
+    }
+
+    @Benchmark
+    public Spectrum decode() {
+        skip = false;
+        return feed();
+    }
+
+    @Benchmark
+    public Spectrum decodeSkipped() {
+        skip = true;
+        return feed();
+    }
+
+    @Override public void onSerialNumber(String serial) {}
+    @Override public void onSpectrumHeader(Spectrum spectrum) { if (skip) decoder.skip(); }
+    @Override public void onSpectrumProgress(Spectrum spectrum, int binsReceived) {}
+    @Override public void onSpectrumComplete(Spectrum spectrum) { result = spectrum; }
+    @Override public void onSpectrumSkipped(Spectrum spectrum) { result = spectrum; }
+    @Override public void onSpectrumCorrupt(Spectrum spectrum, String reason) { throw new IllegalStateException(reason); }
+    @Override public void onDecodeError(Exception e) { throw new IllegalStateException(e); }
+
+}
@@ -0,0 +1,151 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SpectrumSession against the emulator: command, reply over pipe or localhost TCP,
+ * decode, store to file and archive. Every invocation starts with an empty archive,
+ * so no spectrum is skipped.
+ *
+ * bytesPerSecond > 0 emulates the SPP link rate, e.g. -p bytesPerSecond=20000
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark implements SpectrumSession.Listener {
+
+    @Param({"pipe", "tcp"})
+    String transport;
+
+    @Param({"1024"})
+    int bins;
+
+    @Param({"16"})
+    int spectra;
+
+    @Param({"1024"})
+    int chunkSize;
+
+    @Param({"0"})
+    int bytesPerSecond;
+
+    private ServerSocket server;
+    private Socket socket;
+    private Pds100gEmulator.Link link;
+    private InputStream in;
+    private OutputStream out;
+    private final ChunkPool pool = new ChunkPool(1024, 64);
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    // the emulator always replies, reply deadlines are not checked
+    private static final CommandScheduler.Timer NO_TIMER = new CommandScheduler.Timer() {
+        @Override public void schedule(Runnable task, long delayMillis) {}
+        @Override public void cancel(Runnable task) {}
+    };
+
+    private File directory;
+    private SpectrumSession session;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        Pds100gEmulator emulator = new Pds100gEmulator("PDS00042", spectra, bins);
+        emulator.setChunkSize(chunkSize);
+        emulator.setBytesPerSecond(bytesPerSecond);
+        if (transport.equals("tcp")) {
+            server = emulator.listen(0);
+            socket = new Socket(server.getInetAddress(), server.getLocalPort());
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        } else {
+            link = emulator.connectPipe();
+            in = link.in;
+            out = link.out;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() throws IOException {
+        if (link != null)
+            link.close();
+        if (socket != null)
+            socket.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void startSession() throws IOException {
+        directory = Files.createTempDirectory("pds").toFile();
+        session = new SpectrumSession(data -> {
+            out.write(data);
+            out.flush();
+        }, this, metrics, NO_TIMER, directory, new File(directory, "archive"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeSession() {
+        session.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                delete(f);
+        file.delete();
+    }
+
+    private void receive() throws IOException {
+        ChunkPool.Chunk chunk = pool.obtain();
+        int length = in.read(chunk.data);
+        if (length < 0)
+            throw new IOException("end of stream");
+        chunk.length = length;
+        metrics.onRead(length);
+        session.receive(chunk);
+    }
+
+    @Benchmark
+    public Spectrum timeToSpectrum() throws IOException {
+        session.requestSpectrum();
+        while (session.getLastSpectrum() == null)
+            receive();
+        return session.getLastSpectrum();
+    }
+
+    @Benchmark
+    public Spectrum bulkDownload() throws IOException {
+        session.startBulkDownload();
+        while (session.isBulkDownload())
+            receive();
+        return session.getLastSpectrum();
+    }
+
+    @Override public void onSessionCommand(String msg) {}
+    @Override public void onSessionStatus(String msg) {}
+    @Override public void onSessionProgress(int binsReceived, int bins, int bytesPerSecond) {}
+    @Override public void onSessionSpectrum(Spectrum spectrum) {}
+    @Override public void onSessionBulkDownload(boolean running) {}
+    @Override public void onSessionData(ChunkPool.Chunk chunk) { chunk.release(); }
+
+}
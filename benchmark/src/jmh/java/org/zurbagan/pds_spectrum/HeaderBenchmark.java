@@ -0,0 +1,51 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * R22 header parsing only, the decoder is reset as soon as the header is complete
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeaderBenchmark implements SpectrumDecoder.Listener {
+
+    private byte[] frame;
+    private SpectrumDecoder decoder;
+    private Spectrum result;
+
+    @Setup
+    public void setup() {
+        frame = Frames.r22(1024, 1, 42);
+        decoder = new SpectrumDecoder(this);
+    }
+
+    @Benchmark
+    public Spectrum header() {
+        decoder.expectReply();
+        decoder.decode(frame, 0, SpectrumDecoder.HEADER_LENGTH);
+        return result;
+    }
+
+    @Benchmark
+    public int asciiField() {
+        return AsciiField.parseInt(frame, 24, 29, "dose rate") + AsciiField.parseInt(frame, 32, 38, "time");
+    }
+
+    @Override public void onSerialNumber(String serial) {}
+    @Override public void onSpectrumHeader(Spectrum spectrum) { result = spectrum; decoder.reset(); }
+    @Override public void onSpectrumProgress(Spectrum spectrum, int binsReceived) {}
+    @Override public void onSpectrumComplete(Spectrum spectrum) {}
+    @Override public void onSpectrumSkipped(Spectrum spectrum) {}
+    @Override public void onSpectrumCorrupt(Spectrum spectrum, String reason) { throw new IllegalStateException(reason); }
+    @Override public void onDecodeError(Exception e) { throw new IllegalStateException(e); }
+
+}
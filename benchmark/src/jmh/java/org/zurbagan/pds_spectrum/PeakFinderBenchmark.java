@@ -0,0 +1,45 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * peak search and fit as done by the session for every completed spectrum
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PeakFinderBenchmark {
+
+    @Param({"1024", "4096"})
+    int bins;
+
+    private Spectrum spectrum;
+    private final PeakFinder finder = new PeakFinder();
+    private final PeakFitter fitter = new PeakFitter();
+
+    @Setup
+    public void setup() {
+        spectrum = Frames.spectrum("00012345", bins, 1, 42);
+        spectrum.peaks = finder.find(spectrum);
+    }
+
+    @Benchmark
+    public PeakFinder.Peaks find() {
+        return finder.find(spectrum);
+    }
+
+    @Benchmark
+    public PeakFitter.Fits fitAll() {
+        return fitter.fitAll(spectrum);
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * per frame work of SpectrumView without Canvas: pyramid per new spectrum, columns per zoom step
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlotBenchmark {
+
+    @Param({"1024", "4096"})
+    int bins;
+
+    @Param({"1080"})
+    int width;
+
+    private Spectrum spectrum;
+    private final MinMaxPyramid pyramid = new MinMaxPyramid();
+    private int[] min, max;
+
+    @Setup
+    public void setup() {
+        spectrum = Frames.spectrum("00012345", bins, 1, 42);
+        pyramid.build(spectrum.values, bins);
+        min = new int[width];
+        max = new int[width];
+    }
+
+    @Benchmark
+    public MinMaxPyramid build() {
+        pyramid.build(spectrum.values, bins);
+        return pyramid;
+    }
+
+    @Benchmark
+    public int allColumns() {
+        pyramid.columns(0, bins, width, min, max);
+        return max[width - 1];
+    }
+
+    @Benchmark
+    public int zoomedColumns() {
+        pyramid.columns(bins / 4, bins / 4 + bins / 3, width, min, max);
+        return max[width - 1];
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FORMAT 2 text file of one spectrum, written to a stream discarding the bytes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpectrumWriterBenchmark {
+
+    @Param({"512", "1024", "4096"})
+    int bins;
+
+    private Spectrum spectrum;
+    private final SpectrumWriter writer = new SpectrumWriter();
+    private final CountingStream out = new CountingStream();
+
+    @Setup
+    public void setup() {
+        spectrum = new Spectrum();
+        spectrum.serial = "PDS00042";
+        spectrum.gain = 2.47f;
+        spectrum.offset = 12;
+        spectrum.acqTime = 600;
+        spectrum.date = 20210322;
+        spectrum.time = 142731;
+        spectrum.bins = bins;
+        spectrum.number = 1;
+        spectrum.values = new int[bins];
+        for (int i = 0; i < bins; i++) {
+            spectrum.values[i] = (int) (4000.0 * Math.exp(-i * 4.0 / bins)) + i % 61;
+            spectrum.totalCounts += spectrum.values[i];
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        out.count = 0;
+        writer.write(spectrum, out);
+        return out.count;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
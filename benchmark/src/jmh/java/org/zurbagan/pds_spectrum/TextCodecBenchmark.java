@@ -0,0 +1,77 @@
+package org.zurbagan.pds_spectrum;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * terminal codecs of TextUtil on one Bluetooth read. TextUtil itself creates
+ * Android spans, TextCodec is the part doing the per character work
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TextCodecBenchmark {
+
+    @Param({"1024"})
+    int chunkSize;
+
+    private byte[] data;
+    private String hex;
+    private String text;
+    private final StringBuilder sb = new StringBuilder();
+    private char[] hexChars;
+    private byte[] bytes;
+    private final TextCodec.CaretText caret = new TextCodec.CaretText();
+
+    @Setup
+    public void setup() {
+        data = new byte[chunkSize];
+        System.arraycopy(Frames.r22(1024, 1, 42), 0, data, 0, chunkSize);
+        sb.setLength(0);
+        TextCodec.toHexString(sb, data, 0, data.length);
+        hex = sb.toString();
+        text = new String(data, StandardCharsets.ISO_8859_1);
+        hexChars = new char[3 * chunkSize];
+        bytes = new byte[chunkSize];
+    }
+
+    @Benchmark
+    public int toHexString() {
+        sb.setLength(0);
+        TextCodec.toHexString(sb, data, 0, data.length);
+        return sb.length();
+    }
+
+    @Benchmark
+    public int toHex() {
+        return TextCodec.toHex(data, 0, data.length, hexChars, 0, false);
+    }
+
+    @Benchmark
+    public byte[] fromHexString() {
+        return TextCodec.fromHexString(hex);
+    }
+
+    @Benchmark
+    public int fromHex() {
+        return TextCodec.fromHex(hex, bytes);
+    }
+
+    @Benchmark
+    public int toCaretString() {
+        if (!TextCodec.needsCaret(text, true, text.length()))
+            return 0;
+        TextCodec.toCaret(text, true, text.length(), caret);
+        return caret.runCount;
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.zurbagan.pds_spectrum;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * PDS-100G replies with the layout read by SpectrumDecoder
+ */
+final class Frames {
+
+    static final int R18_LENGTH = 30;
+
+    private Frames() {}
+
+    /**
+     * plausible spectrum: exponential continuum, two peaks and noise
+     */
+    static Spectrum spectrum(String serial, int bins, int number, long seed) {
+        Random random = new Random(seed);
+        Spectrum s = new Spectrum();
+        s.serial = serial;
+        s.gain = 2.47f;
+        s.offset = 12;
+        s.temperature = 18 + random.nextInt(8);
+        s.acqTime = 600;
+        s.doseRate = (10 + random.nextInt(40)) / 100.0f;
+        s.date = 20210322;
+        s.time = (int) Math.floorMod(seed, 24L) * 10000 + number % 60 * 100 + random.nextInt(60);
+        s.bins = bins;
+        s.number = number;
+        s.values = new int[bins];
+        for (int i = 0; i < bins; i++) {
+            double x = (double) i / bins;
+            double v = 4000.0 * Math.exp(-x * 4.0) +
+                    900.0 * Math.exp(-(x - 0.27) * (x - 0.27) / 0.00005) +
+                    300.0 * Math.exp(-(x - 0.55) * (x - 0.55) / 0.0001);
+            s.values[i] = (int) v + random.nextInt(64);
+        }
+        return s;
+    }
+
+    static byte[] r22(int bins, int number, long seed) {
+        return r22(spectrum("PDS00042", bins, number, seed));
+    }
+
+    static byte[] r22(Spectrum s) {
+        String header = String.format(Locale.US, "\u0002R22%-8.8s%03d%03d%+03d%03d%05d%03d%06d%02d%02d%02d%04d%03d",
+                s.serial, Math.round(s.gain * 100), s.offset, s.temperature, s.acqTime,
+                Math.round(s.doseRate * 100), Math.round(s.neutronRate * 100), s.time,
+                s.date % 100, s.date / 100 % 100, s.date / 10000 % 100, s.bins, s.number);
+        byte[] h = header.getBytes(StandardCharsets.ISO_8859_1);
+        if (h.length != SpectrumDecoder.HEADER_LENGTH)
+            throw new IllegalArgumentException("header length " + h.length);
+        byte[] frame = new byte[SpectrumDecoder.HEADER_LENGTH + 2 * s.bins + SpectrumDecoder.TRAILER_LENGTH];
+        System.arraycopy(h, 0, frame, 0, h.length);
+        int pos = h.length;
+        for (int i = 0; i < s.bins; i++) {
+            frame[pos++] = (byte) (s.values[i] >> 8);
+            frame[pos++] = (byte) s.values[i];
+        }
+        frame[pos++] = '0';
+        frame[pos++] = '0';
+        frame[pos] = SpectrumDecoder.ETX;
+        return frame;
+    }
+
+    /**
+     * R18 reply, only the serial number at 22..30 is known
+     */
+    static byte[] r18(String serial) {
+        String reply = String.format(Locale.US, "\u0002R18%18s%-8.8s", "", serial);
+        return reply.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+}
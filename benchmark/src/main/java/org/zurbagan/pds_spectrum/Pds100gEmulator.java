@@ -0,0 +1,226 @@
+package org.zurbagan.pds_spectrum;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PDS-100G emulator, to run the app protocol code without device and Bluetooth
+ *
+ * commands are framed by STX .. ETX like sent by SpectrumSession
+ *   G18      R18 reply with serial number
+ *   G22000   R22 reply with last spectrum in memory
+ *   G22001   next (newer) spectrum
+ *   G22002   previous (older) spectrum
+ * spectra are numbered from 1 (oldest) to the memory size (last). Unknown commands are ignored.
+ *
+ * replies are written in chunks of chunkSize bytes, optionally throttled to bytesPerSecond
+ * to behave like an SPP link. One emulator can serve several connections, each with its
+ * own memory position.
+ *
+ * standalone TCP server on localhost:
+ *   ./gradlew :benchmark:emulator --args="[port [spectra [bins [chunkSize [bytesPerSecond]]]]]"
+ */
+final class Pds100gEmulator {
+
+    private final String serial;
+    private final byte[][] memory;      // memory[number - 1]
+    private volatile int chunkSize = 1024;
+    private volatile int bytesPerSecond; // 0 = unlimited
+
+    Pds100gEmulator(String serial, int spectra, int bins) {
+        this.serial = serial;
+        this.memory = new byte[spectra][];
+        for (int i = 0; i < spectra; i++)
+            memory[i] = Frames.r22(Frames.spectrum(serial, bins, i + 1, i));
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    void setBytesPerSecond(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    int getSpectra() {
+        return memory.length;
+    }
+
+    /**
+     * local connection through pipes, served by a daemon thread until closed
+     */
+    Link connectPipe() throws IOException {
+        PipedInputStream deviceIn = new PipedInputStream(64);
+        PipedOutputStream appOut = new PipedOutputStream(deviceIn);
+        PipedInputStream appIn = new PipedInputStream(64 * 1024);
+        PipedOutputStream deviceOut = new PipedOutputStream(appIn);
+        Link link = new Link(appIn, appOut);
+        start("pds emulator pipe", () -> {
+            try {
+                serve(deviceIn, deviceOut);
+            } catch (IOException ignored) {
+            } finally {
+                closeQuietly(deviceIn);
+                closeQuietly(deviceOut);
+            }
+        });
+        return link;
+    }
+
+    /**
+     * accept TCP connections on localhost, port 0 = any free port
+     */
+    ServerSocket listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+        start("pds emulator " + server.getLocalPort(), () -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    start("pds emulator " + socket.getRemoteSocketAddress(), () -> {
+                        try {
+                            serve(socket.getInputStream(), socket.getOutputStream());
+                        } catch (IOException ignored) {
+                        } finally {
+                            closeQuietly(socket);
+                        }
+                    });
+                } catch (IOException ignored) {
+                    // closed
+                }
+            }
+        });
+        return server;
+    }
+
+    /**
+     * answer commands until end of stream
+     */
+    void serve(InputStream in, OutputStream out) throws IOException {
+        in = new BufferedInputStream(in);
+        byte[] command = new byte[16];
+        int length = -1;    // -1 = wait for STX
+        int cursor = memory.length;
+        Pacer pacer = new Pacer();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == SpectrumDecoder.STX) {
+                length = 0;
+            } else if (length < 0) {
+                continue;
+            } else if (b == SpectrumDecoder.ETX) {
+                String cmd = new String(command, 0, length, StandardCharsets.ISO_8859_1);
+                length = -1;
+                if (cmd.equals("G18")) {
+                    pacer.write(out, Frames.r18(serial));
+                } else if (cmd.startsWith("G22") && memory.length > 0) {
+                    if (cmd.equals("G22000"))
+                        cursor = memory.length;
+                    else if (cmd.equals("G22001"))
+                        cursor = Math.min(cursor + 1, memory.length);
+                    else if (cmd.equals("G22002"))
+                        cursor = Math.max(cursor - 1, 1);
+                    else
+                        continue;
+                    pacer.write(out, memory[cursor - 1]);
+                }
+            } else if (length < command.length) {
+                command[length++] = (byte) b;
+            } else {
+                length = -1; // too long, not a command
+            }
+        }
+    }
+
+    /**
+     * writes replies in chunks, limiting the average rate to bytesPerSecond
+     */
+    private final class Pacer {
+        private long startNanos = System.nanoTime();
+        private long sent;
+
+        void write(OutputStream out, byte[] reply) throws IOException {
+            int rate = bytesPerSecond;
+            int size = Math.max(1, chunkSize);
+            if (rate <= 0) {
+                sent = 0;
+                startNanos = System.nanoTime();
+            }
+            for (int pos = 0; pos < reply.length; pos += size) {
+                int n = Math.min(size, reply.length - pos);
+                if (rate > 0) {
+                    long due = startNanos + sent * 1_000_000_000L / rate;
+                    long now = System.nanoTime();
+                    if (due > now)
+                        LockSupport.parkNanos(due - now);
+                    else if (now - due > 1_000_000_000L)
+                        startNanos = now - sent * 1_000_000_000L / rate; // idle link, don't burst
+                }
+                out.write(reply, pos, n);
+                out.flush();
+                sent += n;
+            }
+        }
+    }
+
+    /**
+     * app side of a pipe connection
+     */
+    static final class Link implements Closeable {
+        final InputStream in;
+        final OutputStream out;
+
+        private Link(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private static void start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8022;
+        int spectra = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int bins = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        Pds100gEmulator emulator = new Pds100gEmulator("PDS00042", spectra, bins);
+        if (args.length > 3)
+            emulator.setChunkSize(Integer.parseInt(args[3]));
+        if (args.length > 4)
+            emulator.setBytesPerSecond(Integer.parseInt(args[4]));
+        ServerSocket server = emulator.listen(port);
+        System.out.println("PDS-100G emulator with " + spectra + " spectra of " + bins +
+                " bins listening on " + server.getLocalSocketAddress());
+        Thread.currentThread().join();
+    }
+
+}
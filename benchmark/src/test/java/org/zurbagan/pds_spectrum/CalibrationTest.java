@@ -0,0 +1,55 @@
+package org.zurbagan.pds_spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CalibrationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void userCalibrationOfPaddedSerialSurvivesReload() throws Exception {
+        File file = new File(folder.getRoot(), "calibrations.txt");
+        Calibration.load(file);
+        String serial = String.format("%-8.8s", "PDS42"); // as in the R22 header
+        Calibration.setUser(serial, 3.15f, 1024, new Calibration(5.5, 2.96, 6e-5));
+
+        Calibration.load(file);
+        Calibration c = Calibration.getUser(serial, 3.15f, 1024);
+        assertNotNull(c);
+        assertEquals(5.5, c.c0, 0);
+        assertEquals(2.96, c.c1, 0);
+        assertEquals(6e-5, c.c2, 0);
+        assertEquals(c.energy(100), Calibration.table(serial, 3.15f, 0, 1024).energy(100f), 1e-3);
+    }
+
+    @Test
+    public void userCalibrationOnlyForItsGainAndBins() throws Exception {
+        Calibration.load(new File(folder.getRoot(), "calibrations.txt"));
+        Calibration.setUser("PDS00042", 3.15f, 1024, new Calibration(5.5, 2.96, 6e-5));
+        assertNull(Calibration.getUser("PDS00042", 3.2f, 1024));
+        assertNull(Calibration.getUser("PDS00042", 3.15f, 2048));
+        assertEquals(3.2f * 100, Calibration.table("PDS00042", 3.2f, 0, 1024).energy(100f), 1e-3);
+    }
+
+    @Test
+    public void fitThroughReferencePeaks() {
+        Calibration c = Calibration.fit(new double[]{220, 390, 445}, new double[]{661.66, 1173.23, 1332.49}, 3, 1024);
+        assertEquals(661.66, c.energy(220), 1e-6);
+        assertEquals(1332.49, c.energy(445), 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fitNeedsTwoPeaks() {
+        Calibration.fit(new double[]{220}, new double[]{661.66}, 1, 1024);
+    }
+
+}
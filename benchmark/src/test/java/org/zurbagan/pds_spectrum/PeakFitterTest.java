@@ -0,0 +1,120 @@
+package org.zurbagan.pds_spectrum;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeakFitterTest {
+
+    private static final int BINS = 1024;
+    private static final String SERIAL = "FIT00001";
+
+    private final PeakFitter fitter = new PeakFitter();
+    private final Calibration.Table calibration = Calibration.table(SERIAL, 1f, 0, BINS); // 1 keV per channel
+
+    /**
+     * counts of gaussians {channel, sigma, height} on b0 + b1 * channel, Poisson-like noise if random != null
+     */
+    private static int[] spectrum(double b0, double b1, double[][] peaks, Random random) {
+        int[] values = new int[BINS];
+        for (int x = 0; x < BINS; x++) {
+            double v = b0 + b1 * x;
+            for (double[] p : peaks) {
+                double d = (x - p[0]) / p[1];
+                v += p[2] * Math.exp(-0.5 * d * d);
+            }
+            if (random != null)
+                v += Math.sqrt(v) * random.nextGaussian();
+            values[x] = (int) Math.max(0, Math.round(v));
+        }
+        return values;
+    }
+
+    private static float area(double[] peak) {
+        return (float) (peak[1] * peak[2] * Math.sqrt(2 * Math.PI));
+    }
+
+    private PeakFitter.Fits fitOne(int[] values, float channel, float fwhm) {
+        PeakFitter.Fits fits = new PeakFitter.Fits(1);
+        int half = Math.round(2 * fwhm);
+        fitter.fit(values, channel, Math.round(channel) - half, Math.round(channel) + half + 1, fwhm, calibration, fits, 0);
+        return fits;
+    }
+
+    @Test
+    public void gaussianOnLinearBackground() {
+        double[] peak = {400.3, 6.0, 1000};
+        int[] values = spectrum(200, 0.5, new double[][]{peak}, null);
+        // found 2 channels off, expected width 20% too small
+        PeakFitter.Fits fits = fitOne(values, 402f, (float) (0.8 * peak[1] * PeakFitter.FWHM_PER_SIGMA));
+        assertEquals(peak[0], fits.centroid[0], 0.05);
+        assertEquals(peak[0], fits.energy[0], 0.05);
+        assertEquals(peak[1] * PeakFitter.FWHM_PER_SIGMA, fits.fwhm[0], 0.1);
+        assertEquals(area(peak), fits.area[0], 0.01 * area(peak));
+        assertTrue(fitter.getIterations() <= PeakFitter.MAX_ITERATIONS);
+    }
+
+    @Test
+    public void gaussianWithNoise() {
+        double[] peak = {250.6, 8.0, 500};
+        int[] values = spectrum(300, -0.2, new double[][]{peak}, new Random(1));
+        PeakFitter.Fits fits = fitOne(values, 250f, (float) (peak[1] * PeakFitter.FWHM_PER_SIGMA));
+        assertEquals(peak[0], fits.centroid[0], 0.5);
+        assertEquals(peak[1] * PeakFitter.FWHM_PER_SIGMA, fits.fwhm[0], 0.1 * peak[1] * PeakFitter.FWHM_PER_SIGMA);
+        assertEquals(area(peak), fits.area[0], 3 * fits.areaError[0]);
+        assertTrue(fits.areaError[0] > 0);
+        assertTrue(fits.chi2[0] > 0.5 && fits.chi2[0] < 2);
+    }
+
+    @Test
+    public void neighbouringPeaksFittedSeparately() {
+        // widths as expected from the detector resolution, so fitAll uses the right regions
+        double s1 = NuclideLibrary.fwhm(300) / PeakFitter.FWHM_PER_SIGMA;
+        double s2 = NuclideLibrary.fwhm(420) / PeakFitter.FWHM_PER_SIGMA;
+        double[][] peaks = {{300.4, s1, 800}, {419.7, s2, 400}};
+        Spectrum spectrum = new Spectrum();
+        spectrum.serial = SERIAL;
+        spectrum.bins = BINS;
+        spectrum.values = spectrum(150, 0.1, peaks, null);
+        spectrum.peaks = new PeakFinder.Peaks(2);
+        spectrum.peaks.channel[0] = 301;
+        spectrum.peaks.channel[1] = 419;
+        PeakFitter.Fits fits = fitter.fitAll(spectrum);
+        assertEquals(2, fits.count);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(peaks[i][0], fits.centroid[i], 0.1);
+            assertEquals(area(peaks[i]), fits.area[i], 0.02 * area(peaks[i]));
+        }
+    }
+
+    @Test
+    public void noPeakFails() {
+        int[] values = spectrum(100, 0, new double[0][], null);
+        PeakFitter.Fits fits = fitOne(values, 500f, 12f);
+        assertTrue(Float.isNaN(fits.area[0]));
+        assertTrue(Float.isNaN(fits.fwhm[0]));
+        assertEquals(500f, fits.centroid[0], 0); // peak finder position kept
+        assertEquals(500f, fits.energy[0], 1e-3);
+    }
+
+    @Test
+    public void dipFails() {
+        int[] values = spectrum(1000, 0, new double[][]{{500, 5, -600}}, null);
+        PeakFitter.Fits fits = fitOne(values, 500f, 12f);
+        assertTrue(Float.isNaN(fits.area[0]));
+    }
+
+    @Test
+    public void regionTooSmallFails() {
+        double[] peak = {400, 1.0, 1000};
+        int[] values = spectrum(200, 0, new double[][]{peak}, null);
+        PeakFitter.Fits fits = new PeakFitter.Fits(1);
+        fitter.fit(values, 400f, 396, 405, 2.4f, calibration, fits, 0);
+        assertTrue(Float.isNaN(fits.area[0]));
+        assertEquals(400f, fits.centroid[0], 0);
+    }
+
+}
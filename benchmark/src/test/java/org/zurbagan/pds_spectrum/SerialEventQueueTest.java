@@ -0,0 +1,145 @@
+package org.zurbagan.pds_spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SerialEventQueueTest {
+
+    private static final int LIMIT = 128;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ArrayDeque<Runnable> io = new ArrayDeque<>();
+    private int transfers;
+    private int loaded;
+
+    private SerialEventQueue queue(File spillFile) {
+        return new SerialEventQueue(spillFile, new ChunkPool(4, 8), LIMIT, io::add, () -> loaded++);
+    }
+
+    private void runIo() {
+        Runnable task;
+        while ((task = io.poll()) != null) {
+            transfers++;
+            task.run();
+        }
+    }
+
+    /** poll like SerialService.replay(), running the io executor whenever the queue waits for it */
+    private List<String> drain(SerialEventQueue queue) {
+        List<String> texts = new ArrayList<>();
+        SerialEventQueue.Item item;
+        while (true) {
+            item = queue.poll();
+            if (item == null && queue.isEmpty())
+                return texts;
+            if (item == null) {
+                int before = loaded;
+                runIo();
+                assertEquals(before + 1, loaded);
+                continue;
+            }
+            texts.add(item.text);
+        }
+    }
+
+    @Test
+    public void spilledItemsComeBackInOrder() throws Exception {
+        File spillFile = new File(folder.getRoot(), "queue.bin");
+        SerialEventQueue queue = queue(spillFile);
+        for (int i = 0; i < 1000; i++)
+            queue.add(SerialEventQueue.Type.Status, "#" + i);
+        runIo();
+        assertTrue(spillFile.length() > 0);
+        List<String> texts = drain(queue);
+        assertEquals(1000, texts.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals("#" + i, texts.get(i));
+        assertFalse(spillFile.exists());
+    }
+
+    @Test
+    public void readChunksSurviveSpill() {
+        File spillFile = new File(folder.getRoot(), "queue.bin");
+        SerialEventQueue queue = queue(spillFile);
+        ChunkPool pool = new ChunkPool(4, 8);
+        for (int i = 0; i < 300; i++) {
+            ChunkPool.Chunk chunk = pool.obtain();
+            chunk.data[0] = (byte) i;
+            chunk.length = 1;
+            queue.add(SerialEventQueue.Type.Read, chunk, null);
+        }
+        runIo();
+        for (int i = 0; i < 300; i++) {
+            SerialEventQueue.Item item = queue.poll();
+            if (item == null) {
+                runIo();
+                item = queue.poll();
+            }
+            assertEquals(SerialEventQueue.Type.Read, item.type);
+            assertEquals(1, item.chunk.length);
+            assertEquals((byte) i, item.chunk.data[0]);
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void failedSpillKeepsItemsInMemoryThenDrops() {
+        File spillFile = new File(folder.getRoot(), "missing/queue.bin"); // cannot be created
+        SerialEventQueue queue = queue(spillFile);
+        for (int i = 0; i < 1000; i++) {
+            queue.add(SerialEventQueue.Type.Status, "#" + i);
+            runIo();
+        }
+        assertEquals(1, transfers); // no further write after the first failure
+        List<String> texts = drain(queue);
+        assertEquals(2 * LIMIT + 1, texts.size());
+        for (int i = 0; i < 2 * LIMIT; i++)
+            assertEquals("#" + i, texts.get(i));
+        assertEquals((1000 - 2 * LIMIT) + " background events dropped, queue full", texts.get(2 * LIMIT));
+    }
+
+    @Test
+    public void spillRetriedAfterDrain() throws Exception {
+        File dir = new File(folder.getRoot(), "cache");
+        SerialEventQueue queue = queue(new File(dir, "queue.bin"));
+        for (int i = 0; i < 300; i++) {
+            queue.add(SerialEventQueue.Type.Status, "#" + i);
+            runIo();
+        }
+        assertEquals(2 * LIMIT + 1, drain(queue).size());
+        assertTrue(dir.mkdir());
+        for (int i = 0; i < 300; i++)
+            queue.add(SerialEventQueue.Type.Status, "#" + i);
+        runIo();
+        assertEquals(300, drain(queue).size());
+    }
+
+    @Test
+    public void clearDeletesSpillFile() throws Exception {
+        File spillFile = new File(folder.getRoot(), "queue.bin");
+        SerialEventQueue queue = queue(spillFile);
+        for (int i = 0; i < 1000; i++)
+            queue.add(SerialEventQueue.Type.Status, "#" + i);
+        runIo();
+        assertTrue(spillFile.exists());
+        queue.clear();
+        runIo();
+        assertFalse(spillFile.exists());
+        assertTrue(queue.isEmpty());
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.zurbagan.pds_spectrum;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SpectrumArchiveTest {
+
+    private static final int[] BINS = {256, 512, 256, 1024, 512};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Spectrum spectrum(int i) {
+        Spectrum s = Frames.spectrum("PDS00042", BINS[i], BINS.length - i, i);
+        s.totalCounts = i;
+        return s;
+    }
+
+    private static long recordEnd(int i) {
+        long end = 0;
+        for (int j = 0; j <= i; j++)
+            end += SpectrumArchive.RECORD_HEADER_LENGTH + 2L * BINS[j];
+        return end;
+    }
+
+    private File archive(String name) throws IOException {
+        File dir = folder.newFolder(name);
+        try (SpectrumArchive archive = new SpectrumArchive(dir)) {
+            for (int i = 0; i < BINS.length; i++)
+                archive.append(spectrum(i));
+        }
+        return dir;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(length);
+        }
+    }
+
+    /**
+     * reopened archive holds the first n spectra, is cut back to them and appends after them
+     */
+    private static void assertRecovered(File dir, int n) throws IOException {
+        try (SpectrumArchive archive = new SpectrumArchive(dir)) {
+            assertEquals(n, archive.size());
+            for (int i = 0; i < BINS.length; i++) {
+                Spectrum s = spectrum(i);
+                assertEquals(i < n ? i : -1, archive.find(s.serial, s.date, s.time, s.number));
+            }
+            if (n > 0)
+                assertArrayEquals(spectrum(n - 1).values, archive.read(n - 1).values);
+            assertEquals(n > 0 ? recordEnd(n - 1) : 0, new File(dir, "spectra.dat").length());
+            assertEquals((long) n * SpectrumArchive.INDEX_ENTRY_LENGTH, new File(dir, "spectra.idx").length());
+            archive.append(spectrum(BINS.length - 1));
+        }
+        try (SpectrumArchive archive = new SpectrumArchive(dir)) {
+            Spectrum s = spectrum(BINS.length - 1);
+            assertEquals(n + 1, archive.size());
+            assertEquals(n < BINS.length - 1 ? n : BINS.length - 1, archive.find(s.serial, s.date, s.time, s.number));
+            assertArrayEquals(s.values, archive.read(n).values);
+        }
+    }
+
+    @Test
+    public void tornIndexRecovered() throws Exception {
+        int entry = SpectrumArchive.INDEX_ENTRY_LENGTH;
+        long[] lengths = {0, 1, entry - 1, entry, entry + 20, 3 * entry, 4 * entry + 47};
+        for (long length : lengths) {
+            File dir = archive("index" + length);
+            truncate(new File(dir, "spectra.idx"), length);
+            assertRecovered(dir, (int) (length / entry));
+        }
+    }
+
+    @Test
+    public void tornDataRecovered() throws Exception {
+        long[] lengths = {0, 10, recordEnd(0) - 1, recordEnd(0), recordEnd(0) + 1, recordEnd(2) + 100, recordEnd(4) - 1};
+        for (long length : lengths) {
+            File dir = archive("data" + length);
+            truncate(new File(dir, "spectra.dat"), length);
+            int n = 0;
+            while (n < BINS.length && recordEnd(n) <= length)
+                n++;
+            assertRecovered(dir, n);
+        }
+    }
+
+    @Test
+    public void unreferencedDataDropped() throws Exception {
+        File dir = archive("data");
+        truncate(new File(dir, "spectra.dat"), recordEnd(4) + 1000); // record written, index entry not
+        truncate(new File(dir, "spectra.idx"), 4L * SpectrumArchive.INDEX_ENTRY_LENGTH);
+        assertRecovered(dir, 4);
+    }
+
+    @Test
+    public void nuclidesUpdatedInPlace() throws Exception {
+        File dir = folder.newFolder("archive");
+        Spectrum s = Frames.spectrum("PDS00042", 256, 1, 1);
+        s.nuclides = NuclideLibrary.Matches.fromMask(1L << 4);
+        try (SpectrumArchive archive = new SpectrumArchive(dir)) {
+            int i = archive.append(s);
+            archive.append(Frames.spectrum("PDS00042", 256, 2, 2));
+            archive.setNuclides(i, 1L << 3 | 1L << 4);
+            assertArrayEquals(new int[]{i}, archive.findByNuclide(3));
+        }
+        try (SpectrumArchive archive = new SpectrumArchive(dir)) {
+            assertEquals(2, archive.size());
+            assertEquals(1L << 3 | 1L << 4, archive.getNuclides(0));
+            assertEquals(1L << 3 | 1L << 4, archive.read(0).nuclides.mask);
+            assertEquals(0, archive.getNuclides(1));
+        }
+    }
+
+}
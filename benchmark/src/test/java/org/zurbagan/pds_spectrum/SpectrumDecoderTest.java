@@ -0,0 +1,173 @@
+package org.zurbagan.pds_spectrum;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumDecoderTest {
+
+    private static final String SERIAL = "PDS00042";
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Spectrum> complete = new ArrayList<>();
+    private boolean skipAll;
+    private int lastProgress;
+
+    private SpectrumDecoder decoder;
+    {
+        decoder = new SpectrumDecoder(new SpectrumDecoder.Listener() {
+            @Override public void onSerialNumber(String serial) { events.add("serial " + serial); }
+            @Override public void onSpectrumHeader(Spectrum spectrum) {
+                events.add("header #" + spectrum.number);
+                lastProgress = 0;
+                if (skipAll)
+                    decoder.skip();
+            }
+            @Override public void onSpectrumProgress(Spectrum spectrum, int binsReceived) {
+                assertTrue(binsReceived >= lastProgress && binsReceived < spectrum.bins);
+                lastProgress = binsReceived;
+            }
+            @Override public void onSpectrumComplete(Spectrum spectrum) {
+                events.add("complete #" + spectrum.number);
+                complete.add(spectrum);
+            }
+            @Override public void onSpectrumSkipped(Spectrum spectrum) { events.add("skipped #" + spectrum.number); }
+            @Override public void onSpectrumCorrupt(Spectrum spectrum, String reason) { events.add("corrupt #" + spectrum.number + " " + reason); }
+            @Override public void onDecodeError(Exception e) { events.add("error"); }
+        });
+    }
+
+    /**
+     * feed data in chunks, expecting the next reply whenever the decoder is idle
+     */
+    private void feed(byte[] data, int chunkSize) {
+        for (int off = 0; off < data.length; off += chunkSize) {
+            int len = Math.min(chunkSize, data.length - off);
+            int pos = 0;
+            while (pos < len) {
+                if (!decoder.isActive())
+                    decoder.expectReply();
+                pos += decoder.decode(data, off + pos, len - pos);
+            }
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** values as decoded, the last bin is always cleared */
+    private static int[] expected(Spectrum s) {
+        int[] values = s.values.clone();
+        values[values.length - 1] = 0;
+        return values;
+    }
+
+    private void assertDecoded(Spectrum expected, Spectrum actual) {
+        assertEquals(expected.serial, actual.serial);
+        assertEquals(expected.number, actual.number);
+        assertEquals(expected.bins, actual.bins);
+        assertEquals(expected.date, actual.date);
+        assertEquals(expected.time, actual.time);
+        assertArrayEquals(expected(expected), actual.values);
+        assertEquals(Arrays.stream(expected(expected)).sum(), actual.totalCounts);
+    }
+
+    @Test
+    public void completeFrame() {
+        Spectrum s = Frames.spectrum(SERIAL, 1024, 7, 1);
+        feed(Frames.r22(s), 4096);
+        assertEquals(Arrays.asList("header #7", "complete #7"), events);
+        assertDecoded(s, complete.get(0));
+    }
+
+    @Test
+    public void garbagePrefix() {
+        Spectrum s = Frames.spectrum(SERIAL, 512, 3, 2);
+        // noise, an unknown tag and a cut off R22 header whose fields are not digits
+        byte[] garbage = concat(ascii("noise\r\n"), ascii("\u0002X99"), ascii("\u0002R22PDS0004x2471"));
+        feed(concat(garbage, Frames.r22(s)), 4096);
+        assertEquals(Arrays.asList("error", "header #3", "complete #3"), events);
+        assertDecoded(s, complete.get(0));
+    }
+
+    @Test
+    public void garbagePrefixInOneByteChunks() {
+        Spectrum s = Frames.spectrum(SERIAL, 512, 3, 2);
+        byte[] garbage = concat(ascii("noise\r\n"), ascii("\u0002X99"), ascii("\u0002R22PDS0004x2471"));
+        feed(concat(garbage, Frames.r22(s)), 1);
+        assertEquals(Arrays.asList("error", "header #3", "complete #3"), events);
+        assertDecoded(s, complete.get(0));
+    }
+
+    @Test
+    public void headerCutOffByNextFrame() {
+        Spectrum a = Frames.spectrum(SERIAL, 512, 5, 3);
+        Spectrum b = Frames.spectrum(SERIAL, 512, 4, 4);
+        byte[] partial = Arrays.copyOf(Frames.r22(a), 30);
+        feed(concat(partial, Frames.r22(b)), 100);
+        assertEquals(Arrays.asList("error", "header #4", "complete #4"), events);
+        assertDecoded(b, complete.get(0));
+    }
+
+    @Test
+    public void binsCutOffByNextFrames() {
+        Spectrum a = Frames.spectrum(SERIAL, 512, 5, 3);
+        Spectrum b = Frames.spectrum(SERIAL, 512, 4, 4);
+        Spectrum c = Frames.spectrum(SERIAL, 512, 3, 5);
+        byte[] partial = Arrays.copyOf(Frames.r22(a), SpectrumDecoder.HEADER_LENGTH + 600);
+        feed(concat(partial, Frames.r22(b), Frames.r22(c)), 1);
+        // a takes the start of b as its bins, the rest of b is dropped while looking for the next reply
+        assertEquals("header #5", events.get(0));
+        assertTrue(events.get(1), events.get(1).startsWith("corrupt #5 no ETX"));
+        assertEquals(Arrays.asList("header #3", "complete #3"), events.subList(events.size() - 2, events.size()));
+        assertEquals(1, complete.size());
+        assertDecoded(c, complete.get(0));
+    }
+
+    @Test
+    public void badEtx() {
+        Spectrum a = Frames.spectrum(SERIAL, 256, 2, 6);
+        Spectrum b = Frames.spectrum(SERIAL, 256, 1, 7);
+        byte[] frame = Frames.r22(a);
+        frame[frame.length - 1] = 'x';
+        feed(concat(frame, Frames.r22(b)), 64);
+        assertEquals(Arrays.asList("header #2", "corrupt #2 no ETX at end of reply but 0x78", "header #1", "complete #1"), events);
+        assertDecoded(b, complete.get(0));
+    }
+
+    @Test
+    public void oneByteChunks() {
+        Spectrum a = Frames.spectrum(SERIAL, 1024, 9, 8);
+        Spectrum b = Frames.spectrum(SERIAL, 1024, 8, 9);
+        feed(concat(Frames.r18(SERIAL), Frames.r22(a), Frames.r22(b)), 1);
+        assertEquals(Arrays.asList("serial " + SERIAL, "header #9", "complete #9", "header #8", "complete #8"), events);
+        assertDecoded(a, complete.get(0));
+        assertDecoded(b, complete.get(1));
+    }
+
+    @Test
+    public void skippedInOneByteChunks() {
+        skipAll = true;
+        Spectrum a = Frames.spectrum(SERIAL, 512, 9, 8);
+        Spectrum b = Frames.spectrum(SERIAL, 512, 8, 9);
+        feed(concat(Frames.r22(a), Frames.r22(b)), 1);
+        assertEquals(Arrays.asList("header #9", "skipped #9", "header #8", "skipped #8"), events);
+    }
+
+}